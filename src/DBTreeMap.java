@@ -5,6 +5,8 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 
@@ -13,14 +15,17 @@ import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextPane;
 import javax.swing.Popup;
 import javax.swing.PopupFactory;
+import javax.swing.SwingWorker;
 
 import prefuse.data.Tree;
 import prefuse.util.ui.UILib;
+import prefuse.visual.NodeItem;
 import prefuse.visual.VisualItem;
 
 
@@ -36,17 +41,15 @@ import prefuse.visual.VisualItem;
  * 
  * Be sure to run DBtoXML.java and LuceneIndexBuilder.java before running this
  * program in order to generate the necessary files to build a treemap.
- */
-
-/* 
- * TO-DO: it could take a while to generate a tree from a large XML file, so perhaps a
- * progress bar or a waiting screen should be implemented (either in this class or in
- * XMLtoTree.java)
+ * 
+ * The window is shown right away, and the XML is loaded in the background by a TreeLoader.  The
+ * treemap is painted as the documents are read, and a progress bar shows how much has been loaded.
  */
 public class DBTreeMap {
 	
 	public static final String TREE_CHI = "./util/data/data.xml";
 	
+	private XMLtoTree source;
 	private DBTreeMapBuilder treemap;
 	private JFrame treemapWindow;
 	private JPanel treemapSection;
@@ -62,6 +65,10 @@ public class DBTreeMap {
 	private JFrame patWindow;
 	private JPanel patPanel;
 	private JTextPane patDetails;
+	private TreeLoader loader;
+	private JPanel loadingPanel;
+	private JProgressBar loadingBar;
+	private JButton cancelLoad;
 	private VisualItem prevNode = null;
 	private static final Color lightYellow = new Color(255,255,208);
 
@@ -72,17 +79,19 @@ public class DBTreeMap {
 	 */
 	public DBTreeMap(String datafile, final String label) {
 		
-		//get the tree
+		//get an empty tree, the documents are loaded once the window is shown
 		Tree t = null;
 		try {
-			t = new XMLtoTree().parse(datafile);
+			source = new XMLtoTree();
+			source.setLazyText(true); //the report text is only read when "More" is pressed
+			t = source.createTree(label);
 		} catch ( Exception e ) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 		
 		//build the treemap
-		treemap = new DBTreeMapBuilder(t, label);
+		treemap = new DBTreeMapBuilder(t, label, source);
 		
 		//displays current node name
 		//!!! feature has been removed in current build
@@ -105,6 +114,7 @@ public class DBTreeMap {
 		southernPanel.setLayout(new BoxLayout(southernPanel, BoxLayout.Y_AXIS));
 		southernPanel.add(box);
 		southernPanel.add(checkboxPanel);
+		southernPanel.add(createLoadingPanel());
 
 		treemapSection = new JPanel(new BorderLayout());
 		treemapSection.add(treemap, BorderLayout.CENTER);
@@ -119,10 +129,41 @@ public class DBTreeMap {
 		
 		treemapWindow = new JFrame("t r e e m a p");
 		treemapWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		treemapWindow.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				SearchByLucene.closeInstance(); //close the index before exiting
+			}
+		});
 		treemapWindow.add(treemapSection);
 		treemapWindow.pack();
 		treemapWindow.setVisible(true);
 		
+		//load the documents in the background
+		loader = new TreeLoader(source, treemap, datafile);
+		loader.addPropertyChangeListener(new LoadingListener());
+		loader.execute();
+	}
+	
+	/**
+	 * Creates the panel that shows the loading progress, with a button to stop loading
+	 * @return a JPanel that contains the progress bar
+	 */
+	private JPanel createLoadingPanel() {
+		loadingPanel = new JPanel();
+		loadingPanel.setLayout(new BoxLayout(loadingPanel, BoxLayout.X_AXIS));
+		
+		loadingBar = new JProgressBar(0, 100);
+		loadingBar.setStringPainted(true);
+		loadingBar.setString("Loading...");
+		
+		cancelLoad = new JButton("Cancel");
+		cancelLoad.setName("cancelLoad");
+		cancelLoad.addActionListener(new JButtonHandler());
+		
+		loadingPanel.add(loadingBar);
+		loadingPanel.add(Box.createRigidArea(new Dimension(10,0)));
+		loadingPanel.add(cancelLoad);
+		return loadingPanel;
 	}
 	
 	/**
@@ -183,7 +224,11 @@ public class DBTreeMap {
 				if (prevNode == null || !prevNode.equals(currNode)) {
 					prevNode = currNode; //prevents redrawing of popup if re-entering same node
 					currNode.getVisualization().repaint();
-					String currNodeName = currNode.getString(label);
+					String currNodeName = XMLtoTree.getLabel((NodeItem)currNode, label);
+					String matches = treemap.getMatches(currNode);
+					if (matches != null && ((NodeItem)currNode).getChildCount() > 0) {
+						currNodeName += "\n Matches: " + matches + " ";
+					}
 			
 					reportName.setText(currNodeName);
 					
@@ -303,15 +348,54 @@ public class DBTreeMap {
 			
 			//get more information about the node (only applies to nodes at the "pid" level)
 			else if (currButton.getName() == "moreInfo") {
-				PatientDocument pd = (PatientDocument)prevNode.get("patDoc");
+				PatientDocument pd = source.getDocument(prevNode);
 				if (pd != null) {
 					patDetails.setText(pd.getParsed());
 					patWindow.setVisible(true);
 				}
 			}
+			
+			//stop loading, the documents loaded so far stay in the treemap
+			else if (currButton.getName() == "cancelLoad") {
+				loader.cancel(false);
+				cancelLoad.setEnabled(false);
+			}
 		}
 	}	
 	
+	/**
+	 * A listener for the progress of the loader.  It updates the progress bar, and hides it once the
+	 * whole file has been loaded
+	 */
+	private class LoadingListener implements PropertyChangeListener {
+		public void propertyChange(PropertyChangeEvent evt) {
+			if (evt.getPropertyName().equals("progress")) {
+				loadingBar.setValue((Integer)evt.getNewValue());
+			}
+			else if (evt.getPropertyName().equals("records")) {
+				if (loader.isCancelled()) {
+					loadingBar.setString("Loading cancelled, " + evt.getNewValue() + " records loaded");
+				}
+				else {
+					loadingBar.setString(evt.getNewValue() + " records loaded");
+				}
+			}
+			else if (evt.getNewValue() == SwingWorker.StateValue.DONE) {
+				treemap.warmUpSearch();
+				if (loader.isCancelled()) {
+					loadingBar.setString("Loading cancelled, " + loader.getRecords() + " records loaded");
+				}
+				else if (loader.getProgress() < 100) {
+					loadingBar.setString("Loading failed, " + loader.getRecords() + " records loaded");
+					cancelLoad.setEnabled(false);
+				}
+				else {
+					loadingPanel.setVisible(false);
+				}
+			}
+		}
+	}
+	
 	
 	public static void main(String argv[]) {
 		UILib.setPlatformLookAndFeel();
@@ -11,8 +11,14 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Rectangle2D;
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -24,6 +30,10 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import prefuse.Display;
 import prefuse.Visualization;
@@ -34,10 +44,12 @@ import prefuse.action.assignment.ColorAction;
 import prefuse.action.layout.Layout;
 import prefuse.action.layout.graph.SquarifiedTreeMapLayout;
 import prefuse.controls.ControlAdapter;
+import prefuse.data.Node;
 import prefuse.data.Schema;
 import prefuse.data.Tree;
 import prefuse.data.expression.Predicate;
 import prefuse.data.expression.parser.ExpressionParser;
+import prefuse.data.util.TreeNodeIterator;
 import prefuse.render.AbstractShapeRenderer;
 import prefuse.render.DefaultRendererFactory;
 import prefuse.util.ColorLib;
@@ -79,36 +91,72 @@ public class DBTreeMapBuilder extends Display {
 	private static final String treeEdges = "tree.edges";
 	private static final String labels = "labels";
 
-	private static HashSet<String> result = null;
+	private static BitSet result = null; //rows of the documents found, in the store of the tree
+	private int[][] resultCounts = null; //documents found and all documents under each node
 	private static String currDB;
 	
 	private JLabel numResultsText;
 	private JTextField queryInput;
 	private JButton querySubmit;
+	private JCheckBox searchAsYouType;
+	
+	//searches run one at a time, off the event thread; a newer search cancels the one that is pending
+	private ExecutorService searchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "search");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY); //painting comes first
+			return t;
+		}
+	});
+	private SearchWorker pendingSearch = null;
+	
+	//with search as you type, the search is run once typing has paused for this many ms
+	private static final int TYPING_DELAY = 300;
+	private Timer typingTimer;
 	
 	private JCheckBox resultsCB;
 	private JCheckBox surgeryCB;
 	private JCheckBox emergencyCB;
 	private JCheckBox noteCB;
-	private StringBuffer checkboxQuery;
 	
-	private static final String typeResults = "type:RSLTS ";
-	private static final String typeSurgery = "type:SURG ";
-	private static final String typeEmergency = "type:EMER ";
-	private static final String typeNote = "type:NOTE ";
+	private static final String typeResults = "type:RSLTS";
+	private static final String typeSurgery = "type:SURG";
+	private static final String typeEmergency = "type:EMER";
+	private static final String typeNote = "type:NOTE";
+	
+	//searches run before the first search, so it does not pay for starting up
+	private static final String[] warmUpQueries = { "sex:M", "sex:F AND race:W" };
 	
 	private DBTreeMapBuilder currBuilder;
 	
+	private XMLtoTree source;
+	private int hoverDepth;
+	private SquarifiedTreeMapLayout subtreeLayout;
+	private ColorAction fillColor;
+	private ColorAction borderColor;
+	
 	/**
 	 * Constructor. It builds the treemap.
 	 * @param t is the Tree to build the treemap with
 	 * @param label is the database in which the data is located
 	 */
 	public DBTreeMapBuilder(final Tree t, String label) {
+		this(t, label, null);
+	}
+	
+	/**
+	 * Constructor. It builds the treemap, which new documents can then be added to
+	 * @param t is the Tree to build the treemap with
+	 * @param label is the database in which the data is located
+	 * @param source is the XMLtoTree that built the tree
+	 */
+	public DBTreeMapBuilder(final Tree t, String label, XMLtoTree source) {
 		super(new Visualization());
 		
 		currDB = label;
 		currBuilder = this;
+		this.source = source;
 		
 		//add the tree to the visualization
 		VisualTree vt = m_vis.addTree(tree, t);
@@ -132,8 +180,8 @@ public class DBTreeMapBuilder extends Display {
 		m_vis.setRendererFactory(rf);
 		
 		// border colors
-		final ColorAction borderColor = new BorderColorAction(treeNodes);
-		final ColorAction fillColor = new FillColorAction(treeNodes);
+		borderColor = new BorderColorAction(treeNodes);
+		fillColor = new FillColorAction(treeNodes, source);
 		
 		// color settings
 		ActionList colors = new ActionList();
@@ -155,6 +203,10 @@ public class DBTreeMapBuilder extends Display {
 		layout.add(new RepaintAction());
 		m_vis.putAction("layout", layout);
 		
+		// layout used to only redo the subtrees that new documents were added to
+		subtreeLayout = new SquarifiedTreeMapLayout(tree);
+		subtreeLayout.setVisualization(m_vis);
+		
 		// initialize our display
 		setSize(700, 600);
 		setItemSorter(new TreeDepthItemSorter());
@@ -191,6 +243,121 @@ public class DBTreeMapBuilder extends Display {
 		m_vis.run("layout");
 	}
 	
+	/**
+	 * Adds new documents to the treemap while it is displayed.  Only the authors that the documents were
+	 * added to are laid out again, inside the space they already had, so the other authors do not move.  The
+	 * whole treemap is laid out again when a new author is added, or the next time the window is resized.
+	 * @param docs is the new documents
+	 * @throws IOException
+	 */
+	public void addDocuments(List<PatientDocument> docs) throws IOException {
+		addDocuments(docs, false);
+	}
+	
+	/**
+	 * Adds new documents to the treemap while it is displayed
+	 * @param docs is the new documents
+	 * @param layoutAll is true to lay out the whole treemap again, so the space of every author matches
+	 * its number of documents, false to only lay out the authors that the documents were added to
+	 * @throws IOException
+	 */
+	public void addDocuments(List<PatientDocument> docs, boolean layoutAll) throws IOException {
+		if (source == null) {
+			throw new IllegalStateException("The treemap was not built with an XMLtoTree");
+		}
+		synchronized (m_vis) {
+			VisualTree vt = (VisualTree)m_vis.getGroup(tree);
+			Node root = vt.getRoot();
+			int numAuthors = root.getChildCount();
+			List<Node> changed = source.append(docs);
+			
+			if (layoutAll || root.getChildCount() != numAuthors) {
+				layoutAll();
+				return;
+			}
+			for (Node author : changed) {
+				layoutSubtree((NodeItem)m_vis.getVisualItem(treeNodes, author));
+			}
+		}
+		m_vis.repaint();
+	}
+	
+	/**
+	 * Lays out the whole treemap again, so the space of every author matches its number of documents.  Used
+	 * once all the documents have been added with addDocuments(List).
+	 */
+	public void layoutDocuments() {
+		synchronized (m_vis) {
+			layoutAll();
+		}
+	}
+	
+	/**
+	 * Adds a whole grouping, such as one read from a snapshot, to a treemap that has no documents yet
+	 * @param group is the grouping
+	 */
+	public void setDocuments(DocumentGroup group) {
+		if (source == null) {
+			throw new IllegalStateException("The treemap was not built with an XMLtoTree");
+		}
+		synchronized (m_vis) {
+			source.setDocuments(group);
+			layoutAll();
+		}
+	}
+	
+	/**
+	 * Sets up the items that were added to the treemap, and lays out the whole treemap again
+	 */
+	private void layoutAll() {
+		m_vis.setVisible(treeEdges, null, false);
+		setHoverDepth(hoverDepth);
+		m_vis.run("layout");
+	}
+	
+	/**
+	 * Lays out a subtree again inside the bounds of its root, and sets up and colors the items that were
+	 * added to it
+	 * @param item is the root of the subtree
+	 */
+	private void layoutSubtree(NodeItem item) {
+		Rectangle2D b = (Rectangle2D)item.getBounds().clone();
+		double x = item.getX();
+		double y = item.getY();
+		
+		//the layout leaves a pixel out on the right and at the bottom, so it is given one more
+		subtreeLayout.setLayoutRoot(item);
+		subtreeLayout.setLayoutBounds(new Rectangle2D.Double(b.getX(), b.getY(), b.getWidth() + 1, b.getHeight() + 1));
+		subtreeLayout.run(1.0);
+		
+		//the layout puts its root at the origin and the rest of the subtree relative to it, so move them all
+		//back to where the root was
+		item.setBounds(b.getX(), b.getY(), b.getWidth(), b.getHeight());
+		item.setX(x);
+		item.setY(y);
+		Iterator<?> iter = new TreeNodeIterator(item);
+		iter.next();
+		while (iter.hasNext()) {
+			NodeItem n = (NodeItem)iter.next();
+			Rectangle2D r = n.getBounds();
+			n.setBounds(r.getX() + b.getX(), r.getY() + b.getY(), r.getWidth(), r.getHeight());
+			n.setX(n.getX() + b.getX());
+			n.setY(n.getY() + b.getY());
+		}
+		
+		//edges are hidden and only nodes at the hover depth are interactive, like in the rest of the treemap
+		iter = new TreeNodeIterator(item);
+		while (iter.hasNext()) {
+			NodeItem n = (NodeItem)iter.next();
+			n.setInteractive(n.getDepth() == hoverDepth);
+			fillColor.process(n, 1.0);
+			borderColor.process(n, 1.0);
+			if (n.getParentEdge() != null) {
+				((VisualItem)n.getParentEdge()).setVisible(false);
+			}
+		}
+	}
+	
 	/**
 	 * Displays the name of the current node
 	 * @param label is the name of the database
@@ -206,7 +373,7 @@ public class DBTreeMapBuilder extends Display {
 		//listener to display current node when the cursor enters or leaves a node
 		addControlListener(new ControlAdapter() {
 			public void itemEntered(VisualItem item, MouseEvent e) {
-				title.setText(item.getString(label));
+				title.setText(XMLtoTree.getLabel((NodeItem)item, label));
 			}
 			public void itemExited(VisualItem item, MouseEvent e) {
 				if(e.getX() >= getWidth()-1 || e.getX() <= 0 ||
@@ -235,6 +402,28 @@ public class DBTreeMapBuilder extends Display {
 		queryInput.setMaximumSize(new Dimension(150,20));
 		queryInput.addKeyListener(new TextFieldHandler());
 		
+		//search as you type: the timer is restarted on each change, so it only fires once typing pauses
+		typingTimer = new Timer(TYPING_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				setupSearchQuery();
+			}
+		});
+		typingTimer.setRepeats(false);
+		queryInput.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				changedUpdate(e);
+			}
+			public void removeUpdate(DocumentEvent e) {
+				changedUpdate(e);
+			}
+			public void changedUpdate(DocumentEvent e) {
+				if (searchAsYouType.isSelected()) {
+					typingTimer.restart();
+				}
+			}
+		});
+		searchAsYouType = new JCheckBox("As you type");
+		
 		JButtonHandler jbh = new JButtonHandler();	
 		
 		//submit button
@@ -254,6 +443,8 @@ public class DBTreeMapBuilder extends Display {
 		searchPanel.add(querySubmit);
 		searchPanel.add(Box.createRigidArea(new Dimension(10,0)));
 		searchPanel.add(resetMap);
+		searchPanel.add(Box.createRigidArea(new Dimension(10,0)));
+		searchPanel.add(searchAsYouType);
 		
 		return searchPanel;
 	}
@@ -294,7 +485,6 @@ public class DBTreeMapBuilder extends Display {
 		
 		JLabel filter = new JLabel("Filter by Report Type: ");
 		
-		checkboxQuery = new StringBuffer("");
 		resultsCB = new JCheckBox("Results");
 		surgeryCB = new JCheckBox("Surgery");
 		emergencyCB = new JCheckBox("Emergency");
@@ -320,6 +510,7 @@ public class DBTreeMapBuilder extends Display {
 	 * @param depth is the depth level of the tree
 	 */
 	private void setHoverDepth(int depth) {
+		hoverDepth = depth;
 		m_vis.setInteractive(treeNodes, null, true);
 		Predicate noLeaf = (Predicate)ExpressionParser.parse("treedepth()!=" + depth);
 		m_vis.setInteractive(treeNodes, noLeaf, false);
@@ -327,74 +518,109 @@ public class DBTreeMapBuilder extends Display {
 	}
 	
 	/**
-	 * Formats the search query
+	 * Formats the search query.  The checkboxes are used as filters, so their results are reused instead of
+	 * being searched again with the text field.
 	 */
 	private void setupSearchQuery() {
 		String input = queryInput.getText().toString().trim();
-		String query = "";
 		
-		//if empty text field, search query is based on the checkboxes
-		if (input.equals("")) {
-			query = checkboxQuery.toString();
+		ArrayList<String> filters = new ArrayList<String>();
+		if (resultsCB.isSelected()) {
+			filters.add(typeResults);
 		}
-		
-		//else if no checkboxes, search query is based on the text field
-		else if (checkboxQuery.toString().trim().length() == 0) {
-			query = input;
+		if (surgeryCB.isSelected()) {
+			filters.add(typeSurgery);
 		}
-		
-		//else, search query is the combination of the checkboxes and text field
-		else {
-			query = "(" + checkboxQuery.toString() + ") AND " + input;
+		if (emergencyCB.isSelected()) {
+			filters.add(typeEmergency);
 		}
-		highlightResults(query); //perform search
+		if (noteCB.isSelected()) {
+			filters.add(typeNote);
+		}
+		highlightResults(input, filters.toArray(new String[filters.size()])); //perform search
 		
 	}
 	
 	/**
-	 * Highlight the nodes that matches the search criteria
-	 * @param query
+	 * Clears the search results
+	 */
+	private void highlightResults() {
+		highlightResults("", new String[0]);
+	}
+	
+	/**
+	 * Highlight the nodes that matches the search criteria.  The search runs in the background, and the
+	 * nodes are highlighted once it is done, unless a newer search has been started in the meantime.
+	 * @param query is the text of the search
+	 * @param filters is the report types the results are limited to, if any
 	 */
-	private void highlightResults(String query) {
+	private void highlightResults(String query, String[] filters) {
+		typingTimer.stop();
+		if (pendingSearch != null) {
+			pendingSearch.cancel(false);
+			pendingSearch = null;
+		}
+		
 		//clear the search results
-		if (query.equals("")) {
-			if(result != null) {
-				result.clear();
-			}
+		if (query.equals("") && filters.length == 0) {
+			result = null;
+			resultCounts = null;
 			numResultsText.setText("");
 			queryInput.setText("");
+			typingTimer.stop(); //clearing the text is not typing
+			showResults();
 		}
 		//find the nodes
-		else {
-			result = new SearchByLucene().FindPIDs(query);
-			int numResults = 0;
-			if (result != null) {
-				numResults = result.size();
-			}
-			if (numResults == 1) {
-				numResultsText.setText(numResults + " result found");
-			}
-			else {
-				numResultsText.setText(numResults + " results found");
-			}
+		else if (source != null) {
+			numResultsText.setText("Searching...");
+			pendingSearch = new SearchWorker(query, filters);
+			searchExecutor.execute(pendingSearch);
 		}
-
-		//performs the visualization
-		//m_vis.cancel("animatePaint");
-		m_vis.run("colors");
-		m_vis.run("animatePaint");
 	}
 	
 	/**
-	 * Removes the query generated when a user selects a checkbox
-	 * @param type is the type of checkbox
+	 * Prepares the search in the background, once the documents are loaded, so the first search does not
+	 * have to open the index, run the checkbox filters and find the documents in the tree.  The memory used
+	 * by the index in its mode is then printed.
 	 */
-	private void removeCBQuery(String type) {
-		int indexStart = -1;
-		indexStart = checkboxQuery.indexOf(type);
-		if (indexStart > -1) {
-			checkboxQuery.delete(indexStart, indexStart+type.length());
+	public void warmUpSearch() {
+		if (source == null) {
+			return;
 		}
+		searchExecutor.execute(new Runnable() {
+			public void run() {
+				SearchByLucene searcher = SearchByLucene.getInstance();
+				long start = System.currentTimeMillis();
+				searcher.warmUp(warmUpQueries, new String[] { typeResults, typeSurgery, typeEmergency, typeNote },
+						source.getStore());
+				System.out.println("Search warmed up in " + (System.currentTimeMillis() - start) + " ms. "
+						+ searcher.getMemoryUsage());
+			}
+		});
+	}
+	
+	/**
+	 * Gets how many of the documents under a node were found by the current search
+	 * @param item is a node of the treemap
+	 * @return the text "k of n", or null if there is no search or the node was added after the search
+	 */
+	public String getMatches(VisualItem item) {
+		int[][] counts = resultCounts;
+		int node = item.getSourceTuple().getRow();
+		if (counts == null || node >= counts[0].length) {
+			return null;
+		}
+		return counts[0][node] + " of " + counts[1][node];
+	}
+	
+	/**
+	 * Colors the treemap with the current search results
+	 */
+	private void showResults() {
+		//performs the visualization
+		//m_vis.cancel("animatePaint");
+		m_vis.run("colors");
+		m_vis.run("animatePaint");
 	}
 	
 	// ------------------------------------------------------------------------
@@ -437,8 +663,16 @@ public class DBTreeMapBuilder extends Display {
 			ColorLib.getInterpolatedPalette(10,
 				ColorLib.rgb(85,85,85), ColorLib.rgb(0,0,0)), 0, 9);
 
-		public FillColorAction(String group) {
+		private XMLtoTree source;
+
+		/**
+		 * Constructor.
+		 * @param group is the group of the nodes
+		 * @param source is the XMLtoTree that built the tree, which tells the rows of the documents
+		 */
+		public FillColorAction(String group, XMLtoTree source) {
 			super(group, VisualItem.FILLCOLOR);
+			this.source = source;
 		}
 		
 		public int getColor(VisualItem item) {
@@ -448,14 +682,9 @@ public class DBTreeMapBuilder extends Display {
 					return 0; // no fill for parent nodes
 				} 
 				else {
-					String pid = item.getSourceTuple().get(currDB).toString();
-					String key = " PID: ";
-					int pidIndex = pid.indexOf(key);
-					if (pidIndex > -1) {
-						pid = pid.substring(pidIndex+key.length()).trim();
-					}
+					int row = (source == null) ? -1 : source.getDocumentRow(item);
 					//highlight node if found
-					if(result != null && result.size() > 0 && result.contains(pid)) {
+					if(result != null && row >= 0 && result.get(row)) {
 						return ColorLib.rgb(191, 99, 130);
 					}
 					else
@@ -506,6 +735,53 @@ public class DBTreeMapBuilder extends Display {
 		}
 	} 
 	
+	/**
+	 * A search run in the background.  Once it is done, its results are shown, unless it has been cancelled
+	 * by a newer search.
+	 */
+	private class SearchWorker extends SwingWorker<BitSet, Void> {
+		private String query;
+		private String[] filters;
+		private int[][] counts = null;
+		
+		public SearchWorker(String query, String[] filters) {
+			this.query = query;
+			this.filters = filters;
+		}
+		
+		protected BitSet doInBackground() {
+			BitSet rows = SearchByLucene.getInstance().FindRows(query, filters, source.getStore(), this);
+			if (!isCancelled()) {
+				counts = source.countDocuments(rows);
+			}
+			return rows;
+		}
+		
+		protected void done() {
+			if (isCancelled() || pendingSearch != this) {
+				return;
+			}
+			pendingSearch = null;
+			try {
+				result = get();
+				resultCounts = counts;
+			} catch (Exception e) {
+				System.err.println("Error searching for " + query);
+				e.printStackTrace();
+				result = null;
+				resultCounts = null;
+			}
+			int numResults = (result == null) ? 0 : result.cardinality();
+			if (numResults == 1) {
+				numResultsText.setText(numResults + " result found");
+			}
+			else {
+				numResultsText.setText(numResults + " results found");
+			}
+			showResults();
+		}
+	}
+	
 	/**
 	 * A handler for the search field.  It performs the search when the "Enter" key is pressed
 	 */
@@ -538,58 +814,16 @@ public class DBTreeMapBuilder extends Display {
 				noteCB.setSelected(false);
 			}
 			
-			highlightResults(""); //perform the visualization
+			highlightResults(); //perform the visualization
 		}
 	}
 	
 	/**
-	 * A handler for when the user selects or deselects a checkbox.  It will adjust 
-	 * the search query accordingly
+	 * A handler for when the user selects or deselects a checkbox.  The search is run again
+	 * with the filters of the selected checkboxes
 	 */
 	private class CheckBoxListener implements ItemListener {
 		public void itemStateChanged(ItemEvent e) {
-			Object source = e.getItemSelectable();
-			
-			//report type: results
-			if (source == resultsCB) {
-				if (e.getStateChange() == ItemEvent.SELECTED) {
-					checkboxQuery.append(typeResults);
-				}
-				else {
-					removeCBQuery(typeResults);
-				}
-			}
-			
-			//report type: surgery
-			else if (source == surgeryCB) {
-				if(e.getStateChange() == ItemEvent.SELECTED) {
-					checkboxQuery.append(typeSurgery);
-				}
-				else {
-					removeCBQuery(typeSurgery);
-				}
-			}
-			
-			//report type: Emergency
-			else if (source == emergencyCB) {
-				if (e.getStateChange() == ItemEvent.SELECTED) {
-					checkboxQuery.append(typeEmergency);
-				}
-				else {
-					removeCBQuery(typeEmergency);
-				}
-			}
-			
-			//report type: note
-			else if (source == noteCB) {
-				if(e.getStateChange() == ItemEvent.SELECTED) {
-					checkboxQuery.append(typeNote);
-				}
-				else {
-					removeCBQuery(typeNote);
-				}
-			}
-			
 			//perform the visualization
 			setupSearchQuery();
 		}
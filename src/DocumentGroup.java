@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * A group in the Database/Author/Area/Report Type hierarchy used to build the tree.
+ *
+ * Child groups are hash-indexed by their key and kept in the order they were first seen, so a record
+ * is grouped with one lookup per level.  Documents are only stored in the groups at the bottom level, as
+ * their rows in the DocumentStore shared by the whole hierarchy.  Keys are interned in a pool shared by the
+ * whole hierarchy, so a value such as an area name is only kept once no matter how many authors it
+ * appears under.  Child groups can also be found by the raw text their key was made from, so a record
+ * whose fields have been seen before is grouped without making any keys.
+ */
+public class DocumentGroup {
+
+	private String key;
+	private DocumentGroup parent;
+	private HashMap<String, String> keyPool;
+	private DocumentStore store;
+	private LinkedHashMap<String, DocumentGroup> children = null;
+	private HashMap<String, DocumentGroup> childrenByText = null;
+	private int[] rows = null;
+	private int numRows = 0;
+
+	/**
+	 * Constructor for the top of the hierarchy
+	 * @param key is the name of the group, usually the database name
+	 * @param store is the store that holds the documents
+	 */
+	public DocumentGroup(String key, DocumentStore store) {
+		this(key, null, new HashMap<String, String>(64), store);
+	}
+
+	private DocumentGroup(String key, DocumentGroup parent, HashMap<String, String> keyPool, DocumentStore store) {
+		this.key = key;
+		this.parent = parent;
+		this.keyPool = keyPool;
+		this.store = store;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public DocumentGroup getParent() {
+		return parent;
+	}
+
+	public DocumentStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @param childKey is the key of the child group
+	 * @return the child group, or null if there is no such group
+	 */
+	public DocumentGroup getChild(String childKey) {
+		if (children == null) {
+			return null;
+		}
+		return children.get(childKey);
+	}
+
+	/**
+	 * Gets a child group, creating it if this is the first time the key is seen
+	 * @param childKey is the key of the child group
+	 * @return the child group
+	 */
+	public DocumentGroup getOrAddChild(String childKey) {
+		if (children == null) {
+			children = new LinkedHashMap<String, DocumentGroup>();
+		}
+		DocumentGroup child = children.get(childKey);
+		if (child == null) {
+			String pooled = keyPool.get(childKey);
+			if (pooled == null) {
+				pooled = childKey;
+				keyPool.put(pooled, pooled);
+			}
+			child = new DocumentGroup(pooled, this, keyPool, store);
+			children.put(pooled, child);
+		}
+		return child;
+	}
+
+	/**
+	 * @return the child groups, in the order they were added
+	 */
+	public Collection<DocumentGroup> getChildren() {
+		if (children == null) {
+			return new ArrayList<DocumentGroup>(0);
+		}
+		return children.values();
+	}
+
+	/**
+	 * @param text is the raw text of a field, such as " rad " for the key "RAD"
+	 * @return the child group the text was last added to, or null if the text has not been seen
+	 */
+	public DocumentGroup getChildByText(String text) {
+		if (childrenByText == null) {
+			return null;
+		}
+		return childrenByText.get(text);
+	}
+	
+	/**
+	 * Gets a child group, creating it if this is the first time the key is seen, and remembers it for the
+	 * raw text the key was made from
+	 * @param text is the raw text of a field
+	 * @param childKey is the key made from the text
+	 * @return the child group
+	 */
+	public DocumentGroup getOrAddChild(String text, String childKey) {
+		DocumentGroup child = getOrAddChild(childKey);
+		if (childrenByText == null) {
+			childrenByText = new HashMap<String, DocumentGroup>();
+		}
+		childrenByText.put(text, child);
+		return child;
+	}
+	
+	public int getChildCount() {
+		return children == null ? 0 : children.size();
+	}
+
+	/**
+	 * Adds a document to this group
+	 * @param row is the row of the document in the store
+	 */
+	public void addDocument(int row) {
+		if (rows == null) {
+			rows = new int[4];
+		} else if (numRows == rows.length) {
+			int[] r = new int[numRows * 2];
+			System.arraycopy(rows, 0, r, 0, numRows);
+			rows = r;
+		}
+		rows[numRows++] = row;
+	}
+
+	/**
+	 * Merges another grouping into this one.  Groups and documents of the other grouping that are new
+	 * to this one are added after the existing ones, in the order they appear in the other grouping.
+	 * If the other grouping keeps its documents in a store of its own, its documents are first copied to
+	 * the end of this grouping's store.
+	 * @param other is the grouping to merge, which should not be used afterwards
+	 * @throws IOException
+	 */
+	public void merge(DocumentGroup other) throws IOException {
+		int rowOffset = 0;
+		if (other.store != store) {
+			rowOffset = store.addAll(other.store);
+		}
+		merge(other, rowOffset);
+	}
+
+	/**
+	 * @param other is the grouping to merge
+	 * @param rowOffset is added to the rows of the other grouping's documents
+	 */
+	private void merge(DocumentGroup other, int rowOffset) {
+		for (DocumentGroup otherChild : other.getChildren()) {
+			getOrAddChild(otherChild.getKey()).merge(otherChild, rowOffset);
+		}
+		for (int i = 0; i < other.numRows; i++) {
+			addDocument(other.rows[i] + rowOffset);
+		}
+	}
+
+	/**
+	 * @return the number of documents in this group
+	 */
+	public int getDocumentCount() {
+		return numRows;
+	}
+
+	/**
+	 * @param i is the index of a document in this group, in the order they were added
+	 * @return the row of the document in the store
+	 */
+	public int getDocumentRow(int i) {
+		return rows[i];
+	}
+
+	/**
+	 * @param i is the index of a document in this group, in the order they were added
+	 * @return a view of the document
+	 */
+	public PatientDocument getDocument(int i) {
+		return store.get(rows[i]);
+	}
+}
@@ -0,0 +1,668 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Column store for the fields of the patient documents.  A document is a row in the store, and is read
+ * through a PatientDocument view of that row.
+ *
+ * - area, authname, type, sex and race are numbers in a dictionary of strings that is shared by these
+ *   columns, so a value is only kept once
+ * - date and dob are packed into a number (yyyymmdd) when they are in the yyyy-mm-dd format
+ * - title, pid, firstName and lastName are kept in a text heap in memory
+ * - parsed and unparsed are kept in a separate text heap, which may be in memory or in a file
+ *
+ * Documents can be found by their pid through a hash table of the first row of each pid, and the rows that
+ * share a pid are chained in order.  The table is kept up to date as documents are added, and is rebuilt
+ * when a store is read.
+ *
+ * Documents can be added while the store is being read, such as while a tree is painted as it is loaded.
+ * Reading takes a shared lock, so any number of threads read at once, and only adding a document waits
+ * for the readers.
+ */
+public class DocumentStore {
+
+	private static final int INITIAL_ROWS = 1024;
+
+	//dictionary shared by the columns
+	private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private ArrayList<String> strings = new ArrayList<String>();
+
+	private int size = 0;
+
+	//dictionary columns
+	private int[] area = new int[INITIAL_ROWS];
+	private int[] authname = new int[INITIAL_ROWS];
+	private int[] type = new int[INITIAL_ROWS];
+	private int[] sex = new int[INITIAL_ROWS];
+	private int[] race = new int[INITIAL_ROWS];
+
+	//date columns: a packed date, or -1 minus the dictionary number of a value that is not a date
+	private int[] date = new int[INITIAL_ROWS];
+	private int[] dob = new int[INITIAL_ROWS];
+
+	//text columns: title is followed by pid, firstName and lastName in the text heap, and parsed by unparsed
+	//in the body heap
+	private long[] textOffset = new long[INITIAL_ROWS];
+	private int[] titleLength = new int[INITIAL_ROWS];
+	private int[] pidLength = new int[INITIAL_ROWS];
+	private int[] firstNameLength = new int[INITIAL_ROWS];
+	private int[] lastNameLength = new int[INITIAL_ROWS];
+	private long[] bodyOffset = new long[INITIAL_ROWS];
+	private int[] parsedLength = new int[INITIAL_ROWS];
+	private int[] unparsedLength = new int[INITIAL_ROWS];
+
+	private TextStore text;
+	private TextStore body;
+
+	//open addressing hash table of the pids: first row + 1 (0 when the slot is empty), last row and hash of
+	//the pid
+	private int[] pidRows = new int[tableSize(0)];
+	private int[] pidLast = new int[pidRows.length];
+	private int[] pidHashes = new int[pidRows.length];
+	private int numPIDs = 0;
+	//next row with the same pid + 1, or 0 for the last row of a pid
+	private int[] nextPID = new int[INITIAL_ROWS];
+
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Constructor.
+	 * @param body is where the parsed and unparsed text are kept
+	 */
+	public DocumentStore(TextStore body) {
+		this(TextStore.createMemory(), body);
+	}
+
+	private DocumentStore(TextStore text, TextStore body) {
+		this.text = text;
+		this.body = body;
+	}
+
+	/**
+	 * @return the number of documents in the store
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a document to the store
+	 * @param doc is the document
+	 * @return the row of the document
+	 * @throws IOException
+	 */
+	public int add(PatientDocument doc) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (size == area.length) {
+				grow(size * 2);
+			}
+			int row = size;
+			area[row] = intern(doc.getArea());
+			authname[row] = intern(doc.getAuthname());
+			type[row] = intern(doc.getType());
+			sex[row] = intern(doc.getSex());
+			race[row] = intern(doc.getRace());
+			date[row] = packDate(doc.getDate());
+			dob[row] = packDate(doc.getDOB());
+
+			int[] lengths = new int[4];
+			textOffset[row] = text.append(new String[] { doc.getTitle(), doc.getPID(), doc.getFirstName(),
+					doc.getLastName() }, lengths);
+			titleLength[row] = lengths[0];
+			pidLength[row] = lengths[1];
+			firstNameLength[row] = lengths[2];
+			lastNameLength[row] = lengths[3];
+			bodyOffset[row] = body.append(new String[] { doc.getParsed(), doc.getUnparsed() }, lengths);
+			parsedLength[row] = lengths[0];
+			unparsedLength[row] = lengths[1];
+
+			size++;
+			indexPID(row, doc.getPID().trim());
+			return row;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds all the documents of another store, in their order in that store.  The columns and text are
+	 * copied as they are, with only the dictionary numbers and text offsets moved to this store's.
+	 * @param other is the store
+	 * @return the row of the first document of the other store
+	 * @throws IOException
+	 */
+	public int addAll(DocumentStore other) throws IOException {
+		lock.writeLock().lock();
+		other.lock.readLock().lock();
+		try {
+			int[] newIds = new int[other.strings.size()];
+			for (int i = 0; i < newIds.length; i++) {
+				newIds[i] = intern(other.strings.get(i));
+			}
+			long textBase = text.append(other.text);
+			long bodyBase = body.append(other.body);
+
+			int first = size;
+			if (size + other.size > area.length) {
+				grow(Math.max(area.length * 2, size + other.size));
+			}
+			for (int r = 0; r < other.size; r++) {
+				int row = size;
+				area[row] = newIds[other.area[r]];
+				authname[row] = newIds[other.authname[r]];
+				type[row] = newIds[other.type[r]];
+				sex[row] = newIds[other.sex[r]];
+				race[row] = newIds[other.race[r]];
+				date[row] = other.date[r] < 0 ? -1 - newIds[-1 - other.date[r]] : other.date[r];
+				dob[row] = other.dob[r] < 0 ? -1 - newIds[-1 - other.dob[r]] : other.dob[r];
+				textOffset[row] = textBase + other.textOffset[r];
+				titleLength[row] = other.titleLength[r];
+				pidLength[row] = other.pidLength[r];
+				firstNameLength[row] = other.firstNameLength[r];
+				lastNameLength[row] = other.lastNameLength[r];
+				bodyOffset[row] = bodyBase + other.bodyOffset[r];
+				parsedLength[row] = other.parsedLength[r];
+				unparsedLength[row] = other.unparsedLength[r];
+
+				size++;
+				indexPID(row, getPID(row).trim());
+			}
+			return first;
+		} finally {
+			other.lock.readLock().unlock();
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets a view of a document
+	 * @param row is the row of the document
+	 * @return the document
+	 */
+	public PatientDocument get(int row) {
+		return new PatientDocument(this, row);
+	}
+
+	/**
+	 * Finds the documents with a pid.  The other documents with the pid are found with nextPID(int).
+	 * @param pid is the pid, without leading or trailing spaces
+	 * @return the first row with the pid, or -1 if there is no such document
+	 */
+	public int findPID(String pid) {
+		lock.readLock().lock();
+		try {
+			int i = findSlot(pid, hash(pid));
+			return pidRows[i] - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param row is the row of a document
+	 * @return the next row with the same pid, or -1 if it is the last one
+	 */
+	public int nextPID(int row) {
+		lock.readLock().lock();
+		try {
+			return nextPID[row] - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of a string in the dictionary, adding it if it is not there yet
+	 * @param s is the string
+	 * @return the number of the string
+	 */
+	public int intern(String s) {
+		lock.writeLock().lock();
+		try {
+			Integer id = ids.get(s);
+			if (id == null) {
+				id = strings.size();
+				ids.put(s, id);
+				strings.add(s);
+			}
+			return id;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id is the number of a string in the dictionary
+	 * @return the string
+	 */
+	public String getString(int id) {
+		lock.readLock().lock();
+		try {
+			return strings.get(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getArea(int row) {
+		lock.readLock().lock();
+		try {
+			return strings.get(area[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getDate(int row) {
+		lock.readLock().lock();
+		try {
+			return unpackDate(date[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getAuthname(int row) {
+		lock.readLock().lock();
+		try {
+			return strings.get(authname[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getTitle(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(text, textOffset[row], titleLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getType(int row) {
+		lock.readLock().lock();
+		try {
+			return strings.get(type[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getPID(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(text, textOffset[row] + titleLength[row], pidLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getParsed(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(body, bodyOffset[row], parsedLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getUnparsed(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(body, bodyOffset[row] + parsedLength[row], unparsedLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getFirstName(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(text, textOffset[row] + titleLength[row] + pidLength[row], firstNameLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getLastName(int row) {
+		lock.readLock().lock();
+		try {
+			return readText(text, textOffset[row] + titleLength[row] + pidLength[row] + firstNameLength[row],
+					lastNameLength[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getSex(int row) {
+		lock.readLock().lock();
+		try {
+			return strings.get(sex[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getRace(int row) {
+		lock.readLock().lock();
+		try {
+			return strings.get(race[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getDOB(int row) {
+		lock.readLock().lock();
+		try {
+			return unpackDate(dob[row]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the store: the dictionary, the columns, the text heap and then the body heap.  The body heap
+	 * is written last so it can be read straight from the file by read(FileChannel, long, File, boolean).
+	 * @param out is where the store is written
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			writeStore(out);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void writeStore(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(strings.size());
+		byte[][] encoded = new byte[strings.size()][];
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = strings.get(i).getBytes("UTF-8");
+			out.writeInt(encoded[i].length);
+		}
+		for (byte[] s : encoded) {
+			out.write(s);
+		}
+
+		for (int[] column : new int[][] { area, authname, type, sex, race, date, dob, titleLength, pidLength,
+				firstNameLength, lastNameLength, parsedLength, unparsedLength }) {
+			for (int row = 0; row < size; row++) {
+				out.writeInt(column[row]);
+			}
+		}
+		for (long[] column : new long[][] { textOffset, bodyOffset }) {
+			for (int row = 0; row < size; row++) {
+				out.writeLong(column[row]);
+			}
+		}
+
+		out.writeLong(text.size());
+		text.writeTo(out);
+		out.writeLong(body.size());
+		body.writeTo(out);
+	}
+
+	/**
+	 * Reads a store written by writeTo(DataOutputStream)
+	 * @param channel is the file the store is in
+	 * @param pos is the position of the store in the file
+	 * @param f is the file the store is in
+	 * @param lazyText is true to leave the parsed and unparsed text in the file until they are needed
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static DocumentStore read(FileChannel channel, long pos, File f, boolean lazyText) throws IOException {
+		ByteBuffer buf = map(channel, pos, 8);
+		int numRows = buf.getInt();
+		int numStrings = buf.getInt();
+		pos += 8;
+
+		//dictionary
+		int[] lengths = new int[numStrings];
+		map(channel, pos, 4L * numStrings).asIntBuffer().get(lengths);
+		pos += 4L * numStrings;
+		long dictSize = 0;
+		for (int length : lengths) {
+			dictSize += length;
+		}
+		buf = map(channel, pos, dictSize);
+		pos += dictSize;
+		HashMap<String, Integer> ids = new HashMap<String, Integer>(numStrings * 2);
+		ArrayList<String> strings = new ArrayList<String>(numStrings);
+		for (int i = 0; i < numStrings; i++) {
+			byte[] bytes = new byte[lengths[i]];
+			buf.get(bytes);
+			String s = new String(bytes, "UTF-8");
+			ids.put(s, i);
+			strings.add(s);
+		}
+
+		//columns
+		int capacity = Math.max(INITIAL_ROWS, numRows);
+		int[][] ints = new int[13][];
+		for (int c = 0; c < ints.length; c++) {
+			ints[c] = new int[capacity];
+			map(channel, pos, 4L * numRows).asIntBuffer().get(ints[c], 0, numRows);
+			pos += 4L * numRows;
+		}
+		long[][] longs = new long[2][];
+		for (int c = 0; c < longs.length; c++) {
+			longs[c] = new long[capacity];
+			map(channel, pos, 8L * numRows).asLongBuffer().get(longs[c], 0, numRows);
+			pos += 8L * numRows;
+		}
+
+		//text heaps
+		long textSize = map(channel, pos, 8).getLong();
+		pos += 8;
+		TextStore text = TextStore.readMemory(channel, pos, textSize);
+		pos += textSize;
+		long bodySize = map(channel, pos, 8).getLong();
+		pos += 8;
+		TextStore body;
+		if (lazyText) {
+			body = new TextStore(f, pos, bodySize);
+		} else {
+			body = TextStore.readMemory(channel, pos, bodySize);
+		}
+
+		DocumentStore store = new DocumentStore(text, body);
+		store.ids = ids;
+		store.strings = strings;
+		store.size = numRows;
+		store.area = ints[0];
+		store.authname = ints[1];
+		store.type = ints[2];
+		store.sex = ints[3];
+		store.race = ints[4];
+		store.date = ints[5];
+		store.dob = ints[6];
+		store.titleLength = ints[7];
+		store.pidLength = ints[8];
+		store.firstNameLength = ints[9];
+		store.lastNameLength = ints[10];
+		store.parsedLength = ints[11];
+		store.unparsedLength = ints[12];
+		store.textOffset = longs[0];
+		store.bodyOffset = longs[1];
+		store.nextPID = new int[capacity];
+		store.pidRows = new int[tableSize(numRows)];
+		store.pidLast = new int[store.pidRows.length];
+		store.pidHashes = new int[store.pidRows.length];
+		for (int row = 0; row < numRows; row++) {
+			store.indexPID(row, store.getPID(row).trim());
+		}
+		return store;
+	}
+
+	/**
+	 * Packs a date in the yyyy-mm-dd format into a number
+	 * @param s is the date
+	 * @return the packed date, or -1 minus the dictionary number of the string if it is not a date
+	 */
+	private int packDate(String s) {
+		if (s.length() == 10 && s.charAt(4) == '-' && s.charAt(7) == '-') {
+			int packed = 0;
+			for (int i = 0; i < 10; i++) {
+				if (i == 4 || i == 7) {
+					continue;
+				}
+				char c = s.charAt(i);
+				if (c < '0' || c > '9') {
+					return -1 - intern(s);
+				}
+				packed = packed * 10 + (c - '0');
+			}
+			return packed;
+		}
+		return -1 - intern(s);
+	}
+
+	private String unpackDate(int packed) {
+		if (packed < 0) {
+			return strings.get(-1 - packed);
+		}
+		char[] c = new char[10];
+		for (int i = 9; i >= 0; i--) {
+			if (i == 4 || i == 7) {
+				c[i] = '-';
+				continue;
+			}
+			c[i] = (char)('0' + packed % 10);
+			packed /= 10;
+		}
+		return new String(c);
+	}
+
+	/**
+	 * Adds a row to the pid hash table, at the end of the rows with its pid
+	 * @param row is the row, which must be the last row added
+	 * @param pid is the pid of the row, without leading or trailing spaces
+	 */
+	private void indexPID(int row, String pid) {
+		int h = hash(pid);
+		int i = findSlot(pid, h);
+		if (pidRows[i] != 0) {
+			nextPID[pidLast[i]] = row + 1;
+			pidLast[i] = row;
+			return;
+		}
+		
+		//a new pid, so the table is doubled first if it is half full
+		if ((numPIDs + 1) * 2 > pidRows.length) {
+			int[] oldRows = pidRows;
+			int[] oldLast = pidLast;
+			int[] oldHashes = pidHashes;
+			pidRows = new int[oldRows.length * 2];
+			pidLast = new int[pidRows.length];
+			pidHashes = new int[pidRows.length];
+			int mask = pidRows.length - 1;
+			for (int j = 0; j < oldRows.length; j++) {
+				if (oldRows[j] != 0) {
+					int k = oldHashes[j] & mask;
+					while (pidRows[k] != 0) {
+						k = (k + 1) & mask;
+					}
+					pidRows[k] = oldRows[j];
+					pidLast[k] = oldLast[j];
+					pidHashes[k] = oldHashes[j];
+				}
+			}
+			i = findSlot(pid, h);
+		}
+		pidRows[i] = row + 1;
+		pidLast[i] = row;
+		pidHashes[i] = h;
+		numPIDs++;
+	}
+
+	/**
+	 * @param pid is a pid, without leading or trailing spaces
+	 * @param h is the hash of the pid
+	 * @return the slot of the pid in the hash table, or the empty slot where it would go
+	 */
+	private int findSlot(String pid, int h) {
+		int mask = pidRows.length - 1;
+		int i = h & mask;
+		while (pidRows[i] != 0 && (pidHashes[i] != h || !getPID(pidRows[i] - 1).trim().equals(pid))) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int tableSize(int rows) {
+		int n = 16;
+		while (n < rows * 2) {
+			n *= 2;
+		}
+		return n;
+	}
+
+	private static int hash(String pid) {
+		int h = pid.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private String readText(TextStore store, long offset, int length) {
+		try {
+			return store.read(offset, length);
+		} catch (IOException e) {
+			System.err.println("Error reading text from the document store");
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	private void grow(int capacity) {
+		area = copy(area, capacity);
+		authname = copy(authname, capacity);
+		type = copy(type, capacity);
+		sex = copy(sex, capacity);
+		race = copy(race, capacity);
+		date = copy(date, capacity);
+		dob = copy(dob, capacity);
+		titleLength = copy(titleLength, capacity);
+		pidLength = copy(pidLength, capacity);
+		firstNameLength = copy(firstNameLength, capacity);
+		lastNameLength = copy(lastNameLength, capacity);
+		parsedLength = copy(parsedLength, capacity);
+		unparsedLength = copy(unparsedLength, capacity);
+		nextPID = copy(nextPID, capacity);
+		long[] l = new long[capacity];
+		System.arraycopy(textOffset, 0, l, 0, size);
+		textOffset = l;
+		l = new long[capacity];
+		System.arraycopy(bodyOffset, 0, l, 0, size);
+		bodyOffset = l;
+	}
+
+	private static int[] copy(int[] column, int capacity) {
+		int[] c = new int[capacity];
+		System.arraycopy(column, 0, c, 0, Math.min(column.length, capacity));
+		return c;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Store section too large to map: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+	}
+}
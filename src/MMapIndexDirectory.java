@@ -0,0 +1,172 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Directory of an index on disk whose files are memory mapped when they are read, so the operating system
+ * keeps them in memory outside of the heap.
+ *
+ * Lucene 2.3 only makes its own MMapDirectory through a system property that FSDirectory reads once, when
+ * it is loaded, which then applies to every directory of the JVM.  This directory maps the files itself
+ * instead, and leaves everything else, such as listing the files and locking, to an FSDirectory.
+ */
+public class MMapIndexDirectory extends Directory {
+
+	//the files are mapped in chunks, since a mapped buffer holds at most 2 GB
+	private static final int CHUNK_BITS = 30;
+
+	private FSDirectory files;
+
+	/**
+	 * Constructor.
+	 * @param path is the directory of the index
+	 * @throws IOException
+	 */
+	public MMapIndexDirectory(String path) throws IOException {
+		files = FSDirectory.getDirectory(path);
+		lockFactory = files.getLockFactory();
+	}
+
+	public IndexInput openInput(String name) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(new File(files.getFile(), name), "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = raf.length();
+			int numChunks = (int)Math.max(1, (length + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS);
+			ByteBuffer[] buffers = new ByteBuffer[numChunks];
+			for (int i = 0; i < numChunks; i++) {
+				long start = (long)i << CHUNK_BITS;
+				buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, length - start));
+			}
+			//the mapping stays valid once the file is closed
+			return new MappedInput(buffers, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public String[] list() throws IOException {
+		return files.list();
+	}
+
+	public boolean fileExists(String name) throws IOException {
+		return files.fileExists(name);
+	}
+
+	public long fileModified(String name) throws IOException {
+		return files.fileModified(name);
+	}
+
+	public void touchFile(String name) throws IOException {
+		files.touchFile(name);
+	}
+
+	public void deleteFile(String name) throws IOException {
+		files.deleteFile(name);
+	}
+
+	@SuppressWarnings("deprecation")
+	public void renameFile(String from, String to) throws IOException {
+		files.renameFile(from, to);
+	}
+
+	public long fileLength(String name) throws IOException {
+		return files.fileLength(name);
+	}
+
+	public IndexOutput createOutput(String name) throws IOException {
+		return files.createOutput(name);
+	}
+
+	public String getLockID() {
+		return files.getLockID();
+	}
+
+	public void close() throws IOException {
+		files.close();
+	}
+
+	public String toString() {
+		return getClass().getName() + "@" + files.getFile();
+	}
+
+	/**
+	 * Reads a file from its mapped chunks.  A clone reads the same chunks with a position of its own.
+	 */
+	private static class MappedInput extends IndexInput {
+		private ByteBuffer[] buffers;
+		private long length;
+		private int current = 0;
+		private ByteBuffer buf;
+
+		public MappedInput(ByteBuffer[] buffers, long length) {
+			this.buffers = buffers;
+			this.length = length;
+			buf = buffers[0];
+		}
+
+		public byte readByte() throws IOException {
+			if (!buf.hasRemaining()) {
+				nextChunk();
+			}
+			return buf.get();
+		}
+
+		public void readBytes(byte[] b, int offset, int len) throws IOException {
+			while (len > buf.remaining()) {
+				int n = buf.remaining();
+				buf.get(b, offset, n);
+				offset += n;
+				len -= n;
+				nextChunk();
+			}
+			buf.get(b, offset, len);
+		}
+
+		private void nextChunk() throws IOException {
+			if (current + 1 >= buffers.length) {
+				throw new IOException("read past EOF");
+			}
+			buf = buffers[++current];
+			buf.position(0);
+		}
+
+		public long getFilePointer() {
+			return ((long)current << CHUNK_BITS) + buf.position();
+		}
+
+		public void seek(long pos) throws IOException {
+			if (pos < 0 || pos > length) {
+				throw new IOException("seek past EOF: " + pos);
+			}
+			//the end of a file that fills its last chunk is at the end of that chunk
+			current = (int)Math.min(pos >>> CHUNK_BITS, buffers.length - 1);
+			buf = buffers[current];
+			buf.position((int)(pos - ((long)current << CHUNK_BITS)));
+		}
+
+		public long length() {
+			return length;
+		}
+
+		public void close() {
+		}
+
+		public Object clone() {
+			MappedInput clone = (MappedInput)super.clone();
+			clone.buffers = new ByteBuffer[buffers.length];
+			for (int i = 0; i < buffers.length; i++) {
+				clone.buffers[i] = buffers[i].duplicate();
+			}
+			clone.buf = clone.buffers[current];
+			return clone;
+		}
+	}
+}
@@ -1,5 +1,9 @@
 /**
  * Object that holds information about the patient
+ * 
+ * A document is either a view of a row in a DocumentStore, which is how documents are kept once they have
+ * been read, or holds its own fields, which is how a document is built while it is read.  Views are
+ * read-only: setting a field on a view copies the document out of the store first.
  */
 public class PatientDocument {
 	//Note: the variable names are also the field names
@@ -17,107 +21,200 @@ public class PatientDocument {
 	private String race = "";
 	private String dob = "";
 	
+	//the row this document is a view of
+	private DocumentStore store = null;
+	private int row = -1;
+	
+	public PatientDocument() {
+	}
+	
+	/**
+	 * Constructor for a view of a row in a store
+	 * @param store is the store
+	 * @param row is the row of the document
+	 */
+	public PatientDocument(DocumentStore store, int row) {
+		this.store = store;
+		this.row = row;
+	}
+	
 	public String getArea() {
+		if (store != null) {
+			return store.getArea(row);
+		}
 		return area;
 	}
 	
 	public String getDate() {
+		if (store != null) {
+			return store.getDate(row);
+		}
 		return date;
 	}
 	
 	public String getAuthname() {
+		if (store != null) {
+			return store.getAuthname(row);
+		}
 		return authname;
 	}
 	
 	public String getTitle() {
+		if (store != null) {
+			return store.getTitle(row);
+		}
 		return title;
 	}
 	
 	public String getType() {
+		if (store != null) {
+			return store.getType(row);
+		}
 		return type;
 	}
 	
 	public String getPID() {
+		if (store != null) {
+			return store.getPID(row);
+		}
 		return pid;
 	}
 	
 	public String getParsed() {
+		if (store != null) {
+			return store.getParsed(row);
+		}
 		return parsed;
 	}
 	
 	public String getUnparsed() {
+		if (store != null) {
+			return store.getUnparsed(row);
+		}
 		return unparsed;
 	}
 	
 	public String getFirstName() {
+		if (store != null) {
+			return store.getFirstName(row);
+		}
 		return firstName;
 	}
 	
 	public String getLastName() {
+		if (store != null) {
+			return store.getLastName(row);
+		}
 		return lastName;
 	}
 	
 	public String getSex() {
+		if (store != null) {
+			return store.getSex(row);
+		}
 		return sex;
 	}
 	
 	public String getRace() {
+		if (store != null) {
+			return store.getRace(row);
+		}
 		return race;
 	}
 	
 	public String getDOB() {
+		if (store != null) {
+			return store.getDOB(row);
+		}
 		return dob;
 	}
 	
 	public void setArea(String area) {
+		detach();
 		this.area = area;
 	}
 	
 	public void setDate(String date) {
+		detach();
 		this.date = date;
 	}
 	
 	public void setAuthname(String authname) {
+		detach();
 		this.authname = authname;
 	}
 	
 	public void setTitle(String title) {
+		detach();
 		this.title = title;
 	}
 	
 	public void setType(String type) {
+		detach();
 		this.type = type;
 	}
 	
 	public void setPID(String pid) {
+		detach();
 		this.pid = pid;
 	}
 	
 	public void setParsed(String parsed) {
+		detach();
 		this.parsed = parsed;
 	}
 	
 	public void setUnparsed(String unparsed) {
+		detach();
 		this.unparsed = unparsed;
 	}
 	
 	public void setFirstName(String firstName) {
+		detach();
 		this.firstName = firstName;
 	}
 	
 	public void setLastName(String lastName) {
+		detach();
 		this.lastName = lastName;
 	}
 	
 	public void setSex(String sex) {
+		detach();
 		this.sex = sex;
 	}
 	
 	public void setRace(String race) {
+		detach();
 		this.race = race;
 	}
 	
 	public void setDOB(String dob) {
+		detach();
 		this.dob = dob;
 	}
+	
+	/**
+	 * Copies the fields of a view out of its store, so they can be changed
+	 */
+	private void detach() {
+		if (store != null) {
+			DocumentStore s = store;
+			store = null;
+			area = s.getArea(row);
+			date = s.getDate(row);
+			authname = s.getAuthname(row);
+			title = s.getTitle(row);
+			type = s.getType(row);
+			pid = s.getPID(row);
+			parsed = s.getParsed(row);
+			unparsed = s.getUnparsed(row);
+			firstName = s.getFirstName(row);
+			lastName = s.getLastName(row);
+			sex = s.getSex(row);
+			race = s.getRace(row);
+			dob = s.getDOB(row);
+			row = -1;
+		}
+	}
 }
@@ -0,0 +1,97 @@
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of search results, kept as bitsets of document numbers and keyed by query.  The least recently
+ * used results are dropped once the bitsets take more than a given amount of memory.
+ *
+ * The bitsets are shared by everyone that gets them from the cache, so they must not be changed.
+ */
+public class QueryCache {
+
+	private LinkedHashMap<String, BitSet> results = new LinkedHashMap<String, BitSet>(16, 0.75f, true);
+	private long maxBytes;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor.
+	 * @param maxBytes is the most memory the cached bitsets may take
+	 */
+	public QueryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets the results of a query, counting a hit or a miss
+	 * @param key is the query
+	 * @return the results, or null if they are not in the cache
+	 */
+	public synchronized BitSet get(String key) {
+		BitSet docs = results.get(key);
+		if (docs == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return docs;
+	}
+
+	/**
+	 * Adds the results of a query, dropping the least recently used results if the cache is full.  Results
+	 * that are larger than the whole cache are not kept.
+	 * @param key is the query
+	 * @param docs is the results
+	 */
+	public synchronized void put(String key, BitSet docs) {
+		long size = sizeOf(docs);
+		if (size > maxBytes) {
+			return;
+		}
+		BitSet old = results.put(key, docs);
+		if (old != null) {
+			bytes -= sizeOf(old);
+		}
+		bytes += size;
+		Iterator<BitSet> it = results.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= sizeOf(it.next());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drops all the results, such as when the index has changed.  The hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return the number of times results were found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of times results were not found in the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the memory taken by the cached bitsets, in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private static long sizeOf(BitSet docs) {
+		return docs.size() / 8;
+	}
+}
@@ -1,33 +1,84 @@
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.Future;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.HitCollector;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 
 /**
  * Searches the Lucene Index for documents that match search criteria.
  * 
  * It must have an index already present in order for it to work.
+ * 
+ * The index is opened once and kept open.  Before a search, the index is checked for changes (at most once
+ * every REOPEN_INTERVAL ms), and the reader is reopened if it has changed, so the searches see new documents
+ * without paying for a full open.  A reader is closed once it has been replaced and the searches using it
+ * are done.  The application normally shares one instance, see getInstance().
+ * 
+ * The results of recent queries are kept in a QueryCache, so a repeated search does not run the query
+ * again.  The cache is cleared when the index is reopened.  The results of filters are kept apart from the
+ * cache, so they are never dropped while the index does not change.
+ * 
+ * The index can be read from disk as it is needed, loaded into memory, or memory mapped, see IndexMode.
+ * Loading or mapping the index, together with warmUp(String[], String[], DocumentStore), keeps the first
+ * searches from waiting on the disk.
  */
 public class SearchByLucene {
 	
-	private IndexReader ir;
+	public static final String INDEX_DIR = "./util/data/LuceneIndex";
+	
+	//minimum time between two checks for changes in the index
+	private static final long REOPEN_INTERVAL = 1000;
+	
+	//most memory taken by the cached results
+	private static final long CACHE_BYTES = 32 * 1024 * 1024;
+	
+	/**
+	 * How the index is read
+	 * - DISK: the files are read as they are needed, and only the parts in use are kept in memory
+	 * - RAM: the whole index is copied into the heap when it is opened, and again when it changes
+	 * - MMAP: the files are memory mapped, so the operating system keeps them in memory outside of the heap
+	 * - AUTO: RAM for an index smaller than RAM_LIMIT (and a quarter of the heap), MMAP for a larger one
+	 */
+	public enum IndexMode { DISK, RAM, MMAP, AUTO }
+	
+	//mode of the shared instance
+	public static final IndexMode INDEX_MODE = IndexMode.AUTO;
+	
+	//largest index that is loaded into the heap in AUTO mode
+	private static final long RAM_LIMIT = 128 * 1024 * 1024;
+	
+	private static SearchByLucene instance = null;
+	
+	private String indexPath;
+	private IndexMode mode;
+	private Directory directory = null; //directory on disk, when the index is not loaded into the heap
+	private Analyzer analyzer = new StandardAnalyzer();
+	private Searcher current = null;
+	private long lastCheck = 0;
+	private QueryCache cache = new QueryCache(CACHE_BYTES);
 
 	/**
 	 * Constructor that sets up index reader.  Assumes the index is located in ./util/data/LuceneIndex directory
 	 */
 	public SearchByLucene() {
-		try {
-			//ir = IndexReader.open("./util/data/LuceneIndex");
-			ir = IndexReader.open("C:\\eclipse\\workspace\\treemap\\src\\data\\LuceneIndex");
-		} catch ( Exception e) {
-			System.err.println("Error opening index");
-			e.printStackTrace();
-		}
+		this(INDEX_DIR, INDEX_MODE);
 	}
 	
 	/**
@@ -35,8 +86,20 @@ public class SearchByLucene {
 	 * @param indexPath is the location where the index is stored
 	 */
 	public SearchByLucene(String indexPath) {
+		this(indexPath, INDEX_MODE);
+	}
+	
+	/**
+	 * Constructor that sets up index reader.
+	 * @param indexPath is the location where the index is stored
+	 * @param mode is how the index is read
+	 */
+	public SearchByLucene(String indexPath, IndexMode mode) {
+		this.indexPath = indexPath;
 		try {
-			ir = IndexReader.open(indexPath);
+			this.mode = resolveMode(mode);
+			current = new Searcher(openReader());
+			lastCheck = System.currentTimeMillis();
 		} catch ( Exception e) {
 			System.err.println("Error opening index");
 			e.printStackTrace();
@@ -44,49 +107,541 @@ public class SearchByLucene {
 	}
 	
 	/**
-	 * Searches the index to get the pid#s of results
+	 * Gets the instance shared by the application, opening the index in the default directory the first
+	 * time it is called
+	 * @return the shared instance
+	 */
+	public static synchronized SearchByLucene getInstance() {
+		if (instance == null) {
+			instance = new SearchByLucene();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Closes the shared instance, if it has been opened
+	 */
+	public static synchronized void closeInstance() {
+		if (instance != null) {
+			instance.close();
+			instance = null;
+		}
+	}
+	
+	/**
+	 * Closes the index.  Searches that are running finish with the reader they started with.
+	 */
+	public synchronized void close() {
+		if (current != null) {
+			release(current);
+			current = null;
+			cache.clear();
+		}
+		if (directory != null) {
+			try {
+				directory.close();
+			} catch (IOException e) {
+				System.err.println("Error closing index");
+				e.printStackTrace();
+			}
+			directory = null;
+		}
+	}
+	
+	/**
+	 * Searches the index to get the pid#s of results.  Terms without a field are searched in all the fields
+	 * of the index at once, so a document matches if any of its fields does.
 	 * @param queryString is the query
 	 * @return a HashSet of the list of pid# that matches search query
 	 */
 	public HashSet<String> FindPIDs(String queryString) {
+		return FindPIDs(queryString, new String[0]);
+	}
+	
+	/**
+	 * Searches the index to get the pid#s of results, keeping only the documents that match at least one of
+	 * the filters.  A filter is a query that is used over and over, such as "type:RSLTS": its results are
+	 * kept for as long as the index does not change, and are combined with the results of the query without
+	 * running the filter again.
+	 * @param queryString is the query, or an empty string to only use the filters
+	 * @param filters is the filters, or an empty array to only use the query
+	 * @return a HashSet of the list of pid# that matches search query
+	 */
+	public HashSet<String> FindPIDs(String queryString, String[] filters) {
+		Searcher s = acquire();
+		if (s == null) {
+			return null;
+		}
 		try {
-			ArrayList<String> fields = new ArrayList<String>(ir.getFieldNames(IndexReader.FieldOption.ALL));
-			
-			//if no fields could be found in index, then index is improper, so return null
-			if(fields.size() == 0) {
+			BitSet docs = findMatches(s, queryString, filters, null);
+			if (docs == null || docs.isEmpty()) {
 				return null;
 			}
-
-			HashSet<String> results = null;
-			String pid;
-			IndexSearcher searcher = new IndexSearcher(ir);
-			QueryParser qp;
-			Query query;
-			Hits hits;
-			int hitCount;
 			
-			//begin searching on all fields
-			for (String fieldName : fields) {
-				qp = new QueryParser(fieldName, new StandardAnalyzer());
-				query = qp.parse(queryString);
-
-				// Search for the query
-				hits = searcher.search(query);
-		
-				// Examine the Hits object to see if there were any matches
-				hitCount = hits.length();
-				if (hitCount > 0) {
-					results = new HashSet<String>();
-					for (int i = 0; i < hitCount; i++) {
-						pid = hits.doc(i).get("pid");
-						results.add(pid);
-					}
-				}
+			//the pids come from the field cache of the reader, so no stored document is loaded
+			String[] pids = s.getPIDs();
+			HashSet<String> results = new HashSet<String>(docs.cardinality() * 2);
+			for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+				results.add(pids[doc]);
 			}
 			return results;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
+		} finally {
+			release(s);
+		}
+	}
+	
+	/**
+	 * Searches the index like FindPIDs(String, String[]), giving the results as the rows of the documents in
+	 * a store, such as the store of the tree being displayed.  Results that are not in the store are left
+	 * out.
+	 * @param queryString is the query, or an empty string to only use the filters
+	 * @param filters is the filters, or an empty array to only use the query
+	 * @param store is the store the documents are in
+	 * @return the rows of the documents that match search query
+	 */
+	public BitSet FindRows(String queryString, String[] filters, DocumentStore store) {
+		return FindRows(queryString, filters, store, null);
+	}
+	
+	/**
+	 * Searches the index like FindRows(String, String[], DocumentStore), for a task that can be cancelled.
+	 * The queries stop as soon as they see that the task was cancelled, and their partial results are not
+	 * kept.
+	 * @param queryString is the query, or an empty string to only use the filters
+	 * @param filters is the filters, or an empty array to only use the query
+	 * @param store is the store the documents are in
+	 * @param task is the task the search is done for, or null
+	 * @return the rows of the documents that match search query, or no rows if the task was cancelled
+	 */
+	public BitSet FindRows(String queryString, String[] filters, DocumentStore store, Future<?> task) {
+		BitSet rows = new BitSet();
+		Searcher s = acquire();
+		if (s == null) {
+			return rows;
+		}
+		try {
+			BitSet docs = findMatches(s, queryString, filters, task);
+			if (docs == null) {
+				return rows;
+			}
+			int[] docRows = s.getRows(store);
+			for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+				//documents of the store can share a pid, so every row with the pid matches
+				for (int row = docRows[doc]; row >= 0; row = store.nextPID(row)) {
+					rows.set(row);
+				}
+			}
+			return rows;
+		} catch (SearchCancelled e) {
+			return new BitSet();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return rows;
+		} finally {
+			release(s);
+		}
+	}
+	
+	/**
+	 * Gets the documents that match a query and at least one of the filters
+	 * @param s is the searcher to run the query on
+	 * @param queryString is the query, or an empty string to only use the filters
+	 * @param filters is the filters, or an empty array to only use the query
+	 * @param task is the task the search is done for, or null
+	 * @return the numbers of the matching documents, which must not be changed, or null if there is no query
+	 * @throws ParseException if the query or a filter is not valid
+	 * @throws IOException
+	 */
+	private BitSet findMatches(Searcher s, String queryString, String[] filters, Future<?> task) throws ParseException, IOException {
+		//if no fields could be found in index, then index is improper, so return null
+		if(s.fields.length == 0) {
+			return null;
+		}
+		
+		BitSet docs = null;
+		if (filters.length > 0) {
+			docs = new BitSet(s.reader.maxDoc());
+			for (String filter : filters) {
+				docs.or(getFilter(s, filter, task));
+			}
+		}
+		if (queryString.trim().length() > 0) {
+			BitSet found = findDocs(s, queryString, task);
+			if (docs == null) {
+				docs = found;
+			} else {
+				docs.and(found);
+			}
+		}
+		return docs;
+	}
+	
+	/**
+	 * Prepares for the first searches: runs some queries and the filters so their results are kept, and
+	 * reads the pids of the documents and where they are in the store.  This also brings the parts of the
+	 * index that the searches need into memory.
+	 * @param queries is queries like the ones that are expected
+	 * @param filters is the filters that are expected to be used
+	 * @param store is the store the results will be given for, or null
+	 */
+	public void warmUp(String[] queries, String[] filters, DocumentStore store) {
+		Searcher s = acquire();
+		if (s == null) {
+			return;
+		}
+		try {
+			if (s.fields.length == 0) {
+				return;
+			}
+			for (String query : queries) {
+				findMatches(s, query, filters, null);
+			}
+			for (String filter : filters) {
+				getFilter(s, filter, null);
+			}
+			if (store != null) {
+				s.getRows(store);
+			} else {
+				s.getPIDs();
+			}
+		} catch (Exception e) {
+			System.err.println("Error warming up the index");
+			e.printStackTrace();
+		} finally {
+			release(s);
+		}
+	}
+	
+	/**
+	 * @return a description of the memory used by the index and the cached results
+	 */
+	public String getMemoryUsage() {
+		Searcher s = acquire();
+		if (s == null) {
+			return "Index is not open";
+		}
+		try {
+			long indexBytes = 0;
+			Directory dir = s.reader.directory();
+			if (dir instanceof RAMDirectory) {
+				indexBytes = ((RAMDirectory)dir).sizeInBytes();
+			} else {
+				for (String file : dir.list()) {
+					indexBytes += dir.fileLength(file);
+				}
+			}
+			String index;
+			if (mode == IndexMode.RAM) {
+				index = toMB(indexBytes) + " MB in the heap";
+			} else if (mode == IndexMode.MMAP) {
+				index = toMB(indexBytes) + " MB mapped outside of the heap";
+			} else {
+				index = toMB(indexBytes) + " MB on disk, read as needed";
+			}
+			return "Index (" + mode + "): " + index + ", cached results: " + toMB(cache.getBytes() + s.getFilterBytes())
+					+ " MB, " + s.reader.maxDoc() + " documents";
+		} catch (IOException e) {
+			return "Index (" + mode + "): " + e.getMessage();
+		} finally {
+			release(s);
+		}
+	}
+	
+	/**
+	 * @return the number of searches answered from the cache
+	 */
+	public long getCacheHits() {
+		return cache.getHits();
+	}
+	
+	/**
+	 * @return the number of searches that had to run their query
+	 */
+	public long getCacheMisses() {
+		return cache.getMisses();
+	}
+	
+	/**
+	 * Gets the documents that match a query, from the cache if the query has been run on the same reader
+	 * @param s is the searcher to run the query on
+	 * @param queryString is the query
+	 * @param task is the task the search is done for, or null
+	 * @return the numbers of the matching documents, which must not be changed
+	 * @throws ParseException if the query is not valid
+	 * @throws IOException
+	 */
+	private BitSet findDocs(Searcher s, String queryString, Future<?> task) throws ParseException, IOException {
+		//the parser is cheap to create, but is not thread safe, unlike the analyzer
+		QueryParser qp = new MultiFieldQueryParser(s.fields, analyzer);
+		Query query = qp.parse(queryString);
+		
+		//queries that only differ by spacing, grouping or case of analyzed terms have the same key
+		String key = query.toString();
+		BitSet docs;
+		synchronized (this) {
+			docs = (s == current) ? cache.get(key) : null;
+		}
+		if (docs != null) {
+			return docs;
+		}
+		
+		BitSet found = search(s, query, task);
+		synchronized (this) {
+			//results of a reader that has been replaced would be wrong for the new one
+			if (s == current) {
+				cache.put(key, found);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Gets the documents that match a filter, running it the first time it is used on the reader
+	 * @param s is the searcher to run the filter on
+	 * @param filter is the filter query
+	 * @param task is the task the search is done for, or null
+	 * @return the numbers of the matching documents, which must not be changed
+	 * @throws ParseException if the filter is not valid
+	 * @throws IOException
+	 */
+	private BitSet getFilter(Searcher s, String filter, Future<?> task) throws ParseException, IOException {
+		BitSet docs;
+		synchronized (s.filters) {
+			docs = s.filters.get(filter);
+		}
+		if (docs == null) {
+			docs = search(s, new MultiFieldQueryParser(s.fields, analyzer).parse(filter), task);
+			synchronized (s.filters) {
+				s.filters.put(filter, docs);
+			}
+		}
+		return docs;
+	}
+	
+	/**
+	 * Runs a query, collecting the numbers of the matching documents as they are found
+	 * @param s is the searcher to run the query on
+	 * @param query is the query
+	 * @param task is the task the search is done for, or null
+	 * @return the numbers of the matching documents
+	 * @throws IOException
+	 * @throws SearchCancelled if the task was cancelled
+	 */
+	private static BitSet search(Searcher s, Query query, final Future<?> task) throws IOException {
+		final BitSet docs = new BitSet(s.reader.maxDoc());
+		if (task != null && task.isCancelled()) {
+			throw new SearchCancelled();
+		}
+		s.searcher.search(query, new HitCollector() {
+			public void collect(int doc, float score) {
+				//the searcher cannot be stopped from outside, so the collector stops it
+				if (task != null && task.isCancelled()) {
+					throw new SearchCancelled();
+				}
+				docs.set(doc);
+			}
+		});
+		return docs;
+	}
+	
+	/**
+	 * Thrown from a query to stop it once the task it runs for has been cancelled
+	 */
+	private static class SearchCancelled extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * Gets the current searcher for a search, reopening the index first if it has changed.  The searcher
+	 * must be given back with release(Searcher) once the search is done.
+	 * @return the searcher, or null if the index is not open
+	 */
+	private synchronized Searcher acquire() {
+		if (current == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastCheck >= REOPEN_INTERVAL) {
+			lastCheck = now;
+			try {
+				IndexReader newReader = reopenReader(current.reader);
+				if (newReader != current.reader) {
+					Searcher old = current;
+					current = new Searcher(newReader);
+					cache.clear();
+					release(old);
+				}
+			} catch (IOException e) {
+				//keep searching the reader that is open
+				System.err.println("Error reopening index");
+				e.printStackTrace();
+			}
+		}
+		current.refCount++;
+		return current;
+	}
+	
+	/**
+	 * Picks the mode for AUTO, from the size of the index
+	 * @param mode is the mode asked for
+	 * @return the mode to use
+	 * @throws IOException
+	 */
+	private IndexMode resolveMode(IndexMode mode) throws IOException {
+		if (mode != IndexMode.AUTO) {
+			return mode;
+		}
+		long size = 0;
+		File[] files = new File(indexPath).listFiles();
+		if (files == null) {
+			throw new IOException("No index in " + indexPath);
+		}
+		for (File f : files) {
+			size += f.length();
+		}
+		if (size <= Math.min(RAM_LIMIT, Runtime.getRuntime().maxMemory() / 4)) {
+			return IndexMode.RAM;
+		}
+		return IndexMode.MMAP;
+	}
+	
+	/**
+	 * Opens a reader on the index in the mode of this instance
+	 * @return the reader
+	 * @throws IOException
+	 */
+	private IndexReader openReader() throws IOException {
+		if (mode == IndexMode.RAM) {
+			return IndexReader.open(new RAMDirectory(indexPath));
+		}
+		if (mode == IndexMode.MMAP) {
+			directory = new MMapIndexDirectory(indexPath);
+		} else {
+			directory = FSDirectory.getDirectory(indexPath);
+		}
+		return IndexReader.open(directory);
+	}
+	
+	/**
+	 * Opens a reader on the index if it has changed since a reader was opened
+	 * @param reader is the reader that is open
+	 * @return the new reader, or the one that is open if the index has not changed
+	 * @throws IOException
+	 */
+	private IndexReader reopenReader(IndexReader reader) throws IOException {
+		if (mode == IndexMode.RAM) {
+			//the copy in memory never changes, so the index on disk is checked instead and copied again
+			if (IndexReader.getCurrentVersion(indexPath) == reader.getVersion()) {
+				return reader;
+			}
+			return openReader();
+		}
+		if (reader.isCurrent()) {
+			return reader;
+		}
+		return reader.reopen();
+	}
+	
+	private static long toMB(long bytes) {
+		return (bytes + 512 * 1024) / (1024 * 1024);
+	}
+	
+	/**
+	 * Gives back a searcher, closing it if it has been replaced and is no longer used
+	 * @param s is the searcher
+	 */
+	private synchronized void release(Searcher s) {
+		s.refCount--;
+		if (s.refCount == 0) {
+			try {
+				s.searcher.close();
+				s.reader.close();
+			} catch (IOException e) {
+				System.err.println("Error closing index");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * A reader and its searcher, with the indexed fields of the reader, the results of the filters used on
+	 * it and the rows of its documents in the tree.  refCount counts the users of the reader: the
+	 * SearchByLucene while the reader is current, and each search running on it.
+	 */
+	private static class Searcher {
+		private IndexReader reader;
+		private IndexSearcher searcher;
+		private String[] fields;
+		private String[] pids = null;
+		private int[] rows = null;
+		private DocumentStore rowStore = null;
+		private int mappedSize = 0;
+		private HashMap<String, BitSet> filters = new HashMap<String, BitSet>();
+		private int refCount = 1;
+		
+		public Searcher(IndexReader reader) {
+			this.reader = reader;
+			this.searcher = new IndexSearcher(reader);
+			Collection<?> names = reader.getFieldNames(IndexReader.FieldOption.INDEXED);
+			this.fields = names.toArray(new String[names.size()]);
+		}
+		
+		/**
+		 * @return the memory taken by the results of the filters, in bytes
+		 */
+		public long getFilterBytes() {
+			long bytes = 0;
+			synchronized (filters) {
+				for (BitSet docs : filters.values()) {
+					bytes += docs.size() / 8;
+				}
+			}
+			return bytes;
+		}
+		
+		/**
+		 * @return the pid of each document of the reader, by document number, read from the index the first
+		 * time it is needed
+		 * @throws IOException
+		 */
+		public synchronized String[] getPIDs() throws IOException {
+			if (pids == null) {
+				pids = FieldCache.DEFAULT.getStrings(reader, "pid");
+			}
+			return pids;
+		}
+		
+		/**
+		 * Gets the first row of each document of the reader in a store.  The other rows with the same pid are
+		 * found with DocumentStore.nextPID(int).  The rows are looked up by pid the first time, and only the
+		 * documents that were not in the store are looked up again once it has grown, since the first row of a
+		 * pid does not change when more rows with the pid are added.
+		 * @param store is the store
+		 * @return the first row of each document, by document number, or -1 for a document that is not in the
+		 * store
+		 * @throws IOException
+		 */
+		public synchronized int[] getRows(DocumentStore store) throws IOException {
+			String[] pids = getPIDs();
+			if (rows == null || rowStore != store) {
+				rows = new int[pids.length];
+				Arrays.fill(rows, -1);
+				rowStore = store;
+				mappedSize = 0;
+			}
+			int size = store.size();
+			if (mappedSize != size) {
+				mappedSize = size;
+				for (int doc = 0; doc < rows.length; doc++) {
+					if (rows[doc] < 0 && pids[doc] != null) {
+						rows[doc] = store.findPID(pids[doc].trim());
+					}
+				}
+			}
+			return rows;
 		}
 	}
 }
@@ -0,0 +1,313 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A heap of text, such as the report bodies.  Text is stored as UTF-8 and is found again by its offset
+ * and length.
+ *
+ * A store is either kept in memory, in a temporary file that text is appended to, or in a region of an
+ * existing file.  Memory is allocated in pages, so a large store never has to be copied as it grows.  The
+ * region of an existing file is never written to: text appended to it goes to a temporary file instead.
+ */
+public class TextStore {
+
+	private static final String UTF8 = "UTF-8";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int PAGE_SIZE = 1 << 20;
+
+	//file backed stores
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private long base = 0;
+	private ByteBuffer pending = null;
+	private TextStore overflow = null;
+
+	//memory backed stores
+	private ArrayList<byte[]> pages = null;
+
+	private long size = 0;
+
+	/**
+	 * Creates an empty store in memory
+	 * @return the store
+	 */
+	public static TextStore createMemory() {
+		TextStore store = new TextStore();
+		store.pages = new ArrayList<byte[]>();
+		return store;
+	}
+
+	/**
+	 * Creates an empty store in a temporary file, which is deleted when the program exits
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static TextStore createTemp() throws IOException {
+		File f = File.createTempFile("treemap", ".text");
+		f.deleteOnExit();
+		TextStore store = new TextStore(new RandomAccessFile(f, "rw"), 0, 0);
+		store.pending = ByteBuffer.allocate(BUFFER_SIZE);
+		return store;
+	}
+
+	/**
+	 * Creates a store in memory with a copy of part of a file
+	 * @param channel is the file
+	 * @param pos is the position of the text in the file
+	 * @param length is the number of bytes of text
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static TextStore readMemory(FileChannel channel, long pos, long length) throws IOException {
+		TextStore store = createMemory();
+		while (store.size < length) {
+			byte[] page = new byte[(int)Math.min(PAGE_SIZE, length - store.size)];
+			ByteBuffer buf = ByteBuffer.wrap(page);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, pos + store.size + buf.position()) < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+			}
+			if (page.length < PAGE_SIZE) {
+				//the last page needs room for text appended later
+				byte[] full = new byte[PAGE_SIZE];
+				System.arraycopy(page, 0, full, 0, page.length);
+				page = full;
+			}
+			store.pages.add(page);
+			store.size += buf.capacity();
+		}
+		return store;
+	}
+
+	/**
+	 * Constructor for a read-only store over part of an existing file
+	 * @param f is the file
+	 * @param base is the position in the file where offset 0 of the store is
+	 * @param length is the number of bytes of text
+	 * @throws IOException
+	 */
+	public TextStore(File f, long base, long length) throws IOException {
+		this(new RandomAccessFile(f, "r"), base, length);
+	}
+
+	private TextStore(RandomAccessFile raf, long base, long length) throws IOException {
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.base = base;
+		this.size = length;
+	}
+
+	private TextStore() {
+	}
+
+	/**
+	 * @return the number of bytes in the store
+	 */
+	public synchronized long size() {
+		if (overflow != null) {
+			return size + overflow.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Appends texts to the store, one after the other
+	 * @param texts is the texts
+	 * @param lengths receives the number of bytes of each text
+	 * @return the offset of the first text
+	 * @throws IOException
+	 */
+	public synchronized long append(String[] texts, int[] lengths) throws IOException {
+		if (pages == null && pending == null) {
+			//the text goes after the region, in a temporary file
+			if (overflow == null) {
+				overflow = createTemp();
+			}
+			return size + overflow.append(texts, lengths);
+		}
+		long offset = size;
+		for (int i = 0; i < texts.length; i++) {
+			byte[] bytes = texts[i].getBytes(UTF8);
+			appendBytes(bytes);
+			lengths[i] = bytes.length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Appends all the text of another store
+	 * @param other is the store
+	 * @return the offset of the other store's text in this store
+	 * @throws IOException
+	 */
+	public synchronized long append(TextStore other) throws IOException {
+		if (pages == null && pending == null) {
+			if (overflow == null) {
+				overflow = createTemp();
+			}
+			return size + overflow.append(other);
+		}
+		long offset = size;
+		other.writeTo(new DataOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				appendBytes(off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len));
+			}
+		}));
+		return offset;
+	}
+
+	/**
+	 * Reads text from the store
+	 * @param offset is the offset of the text
+	 * @param length is the number of bytes of the text
+	 * @return the text
+	 * @throws IOException
+	 */
+	public synchronized String read(long offset, int length) throws IOException {
+		if (length == 0) {
+			return "";
+		}
+		if (overflow != null && offset >= size) {
+			return overflow.read(offset - size, length);
+		}
+		byte[] bytes = new byte[length];
+		if (pages != null) {
+			int copied = 0;
+			while (copied < length) {
+				long pos = offset + copied;
+				byte[] page = pages.get((int)(pos / PAGE_SIZE));
+				int start = (int)(pos % PAGE_SIZE);
+				int n = Math.min(length - copied, PAGE_SIZE - start);
+				System.arraycopy(page, start, bytes, copied, n);
+				copied += n;
+			}
+		} else {
+			if (pending != null && pending.position() > 0) {
+				flush();
+			}
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, base + offset + buf.position()) < 0) {
+					throw new IOException("Text is outside of the store");
+				}
+			}
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes all the text in the store
+	 * @param out is where the text is written
+	 * @throws IOException
+	 */
+	public synchronized void writeTo(DataOutputStream out) throws IOException {
+		if (pages != null) {
+			long left = size;
+			for (byte[] page : pages) {
+				int n = (int)Math.min(left, page.length);
+				out.write(page, 0, n);
+				left -= n;
+			}
+		} else {
+			if (pending != null && pending.position() > 0) {
+				flush();
+			}
+			ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+			for (long pos = 0; pos < size; ) {
+				buf.clear();
+				buf.limit((int)Math.min(buf.capacity(), size - pos));
+				int n = channel.read(buf, base + pos);
+				if (n < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				out.write(buf.array(), 0, n);
+				pos += n;
+			}
+			if (overflow != null) {
+				overflow.writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Closes the file of the store
+	 */
+	public synchronized void close() {
+		if (raf == null) {
+			return;
+		}
+		try {
+			if (pending != null && pending.position() > 0) {
+				flush();
+			}
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (overflow != null) {
+			overflow.close();
+		}
+	}
+
+	private void appendBytes(byte[] bytes) throws IOException {
+		if (pages != null) {
+			appendMemory(bytes);
+		} else {
+			appendFile(bytes);
+		}
+		size += bytes.length;
+	}
+
+	private void appendMemory(byte[] bytes) {
+		int copied = 0;
+		while (copied < bytes.length) {
+			long pos = size + copied;
+			int index = (int)(pos / PAGE_SIZE);
+			if (index == pages.size()) {
+				pages.add(new byte[PAGE_SIZE]);
+			}
+			int start = (int)(pos % PAGE_SIZE);
+			int n = Math.min(bytes.length - copied, PAGE_SIZE - start);
+			System.arraycopy(bytes, copied, pages.get(index), start, n);
+			copied += n;
+		}
+	}
+
+	private void appendFile(byte[] bytes) throws IOException {
+		if (bytes.length > pending.remaining()) {
+			flush();
+		}
+		if (bytes.length > pending.capacity()) {
+			write(ByteBuffer.wrap(bytes), size);
+		} else {
+			pending.put(bytes);
+		}
+	}
+
+	/**
+	 * Writes the appended text that is still buffered
+	 */
+	private void flush() throws IOException {
+		pending.flip();
+		write(pending, size - pending.remaining());
+		pending.clear();
+	}
+
+	private void write(ByteBuffer buf, long offset) throws IOException {
+		while (buf.hasRemaining()) {
+			offset += channel.write(buf, base + offset);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+import javax.swing.SwingWorker;
+
+/**
+ * Loads the documents of an XML file into a treemap that is already displayed.
+ * 
+ * The file is parsed on several background threads, and the documents are added to the treemap in batches,
+ * so a partial treemap is painted early and grows as the file is read.  Each batch only lays out the
+ * authors it added documents to, and the whole treemap is laid out once when the loading ends.  If the XML
+ * has a current snapshot, the snapshot is loaded in one go instead, and a new snapshot is written once the
+ * whole XML has been read.
+ * 
+ * Progress is reported with bound properties: "progress" is the percentage of the file read, and
+ * "records" is the number of documents added so far.  Loading is stopped with cancel(false); the documents
+ * read until then stay in the treemap.
+ */
+public class TreeLoader extends SwingWorker<Integer, Void> {
+	
+	private static final int FIRST_BATCH = 500;
+	private static final int MAX_BATCH = 50000;
+	
+	private XMLtoTree source;
+	private DBTreeMapBuilder treemap;
+	private String filePath;
+	private int records = 0;
+	
+	//held while a batch is added, so no batch is added after the loading is cancelled
+	private final Object addLock = new Object();
+	//true if documents were added in batches, which still need the whole treemap laid out
+	private boolean streamed = false;
+	
+	/**
+	 * Constructor.
+	 * @param source is the XMLtoTree that built the tree of the treemap
+	 * @param treemap is the treemap the documents are added to
+	 * @param filePath is the location of the XML file
+	 */
+	public TreeLoader(XMLtoTree source, DBTreeMapBuilder treemap, String filePath) {
+		this.source = source;
+		this.treemap = treemap;
+		this.filePath = filePath;
+	}
+	
+	/**
+	 * @return the number of documents added so far
+	 */
+	public synchronized int getRecords() {
+		return records;
+	}
+	
+	protected Integer doInBackground() throws Exception {
+		DocumentGroup group = source.readSnapshot(filePath);
+		if (group != null) {
+			treemap.setDocuments(group);
+			addRecords(group.getStore().size());
+			setProgress(100);
+			return getRecords();
+		}
+		
+		final long fileSize = Math.max(1, new File(filePath).length());
+		final ArrayList<PatientDocument> batch = new ArrayList<PatientDocument>();
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean complete = source.streamParallel(filePath, threads, new XMLtoTree.RecordListener() {
+			private int batchSize = FIRST_BATCH;
+			
+			public boolean recordRead(PatientDocument doc, long bytesRead) {
+				batch.add(doc);
+				if (batch.size() >= batchSize) {
+					addBatch(batch);
+					batchSize = Math.min(batchSize * 2, MAX_BATCH);
+					setProgress((int)Math.min(99, 100 * bytesRead / fileSize));
+				}
+				return !isCancelled();
+			}
+		});
+		addBatch(batch); //documents read since the last batch
+		
+		if (complete && !isCancelled()) {
+			source.writeSnapshot(filePath);
+			setProgress(100);
+		}
+		return getRecords();
+	}
+	
+	protected void done() {
+		synchronized (addLock) {
+			if (streamed) {
+				treemap.layoutDocuments();
+			}
+		}
+		try {
+			get();
+		} catch (CancellationException e) {
+			//the documents read so far stay in the treemap
+		} catch (Exception e) {
+			System.err.println("Error loading " + filePath);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Adds a batch of documents to the treemap, unless the loading was cancelled, and empties the batch
+	 * @param batch is the documents
+	 */
+	private void addBatch(ArrayList<PatientDocument> batch) {
+		synchronized (addLock) {
+			if (batch.isEmpty() || isCancelled()) {
+				batch.clear();
+				return;
+			}
+			try {
+				treemap.addDocuments(batch);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			streamed = true;
+		}
+		addRecords(batch.size());
+		batch.clear();
+	}
+	
+	private void addRecords(int n) {
+		int old;
+		synchronized (this) {
+			old = records;
+			records += n;
+		}
+		firePropertyChange("records", old, old + n);
+	}
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Reads and writes a binary snapshot of the grouped documents, so the XML does not have to be parsed again
+ * on every launch.
+ *
+ * The snapshot is made of the following sections, with all numbers in big-endian order:
+ * - header: magic, version, size and modification time of the XML, and the number of groups and of
+ *   documents in the groups
+ * - groups: parent, key, first child and number of children, first document and number of documents.  The
+ *   groups are stored level by level, so the children of a group are next to each other.  The keys are
+ *   strings in the dictionary of the document store
+ * - documents: the row in the document store of each document, group after group
+ * - document store: the dictionary, the columns and the text heaps of the DocumentStore
+ *
+ * The snapshot is loaded through memory-mapped buffers.  The parsed and unparsed text are at the end of the
+ * file, so they can be left there and read when needed.
+ */
+public class TreeSnapshot {
+
+	private static final int MAGIC = 0x544D534E; //"TMSN"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+	private static final int GROUP_INTS = 6;
+
+	/**
+	 * Gets the file where the snapshot of an XML file is kept
+	 * @param xmlPath is the location of the XML file
+	 * @return the snapshot file
+	 */
+	public static File snapshotFile(String xmlPath) {
+		return new File(xmlPath + ".snapshot");
+	}
+
+	/**
+	 * Checks whether a snapshot exists and was taken from the current version of the XML file
+	 * @param snapshot is the snapshot file
+	 * @param xml is the XML file
+	 * @return true if the snapshot can be used instead of the XML
+	 */
+	public static boolean isCurrent(File snapshot, File xml) {
+		if (!snapshot.isFile() || !xml.isFile()) {
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(snapshot, "r");
+			if (raf.length() < HEADER_SIZE) {
+				return false;
+			}
+			return raf.readInt() == MAGIC && raf.readInt() == VERSION &&
+					raf.readLong() == xml.length() && raf.readLong() == xml.lastModified();
+		} catch (IOException e) {
+			return false;
+		} finally {
+			close(raf);
+		}
+	}
+
+	/**
+	 * Writes the snapshot of a grouping.  The snapshot is written to a temporary file first, so a
+	 * snapshot that was not completely written is never used.
+	 * @param root is the top group, whose key is the database name
+	 * @param xml is the XML file the grouping was read from
+	 * @param snapshot is the snapshot file
+	 * @throws IOException
+	 */
+	public static void write(DocumentGroup root, File xml, File snapshot) throws IOException {
+		DocumentStore store = root.getStore();
+
+		//list the groups level by level, so the children of a group are next to each other
+		ArrayList<DocumentGroup> groups = new ArrayList<DocumentGroup>();
+		groups.add(root);
+		for (int i = 0; i < groups.size(); i++) {
+			groups.addAll(groups.get(i).getChildren());
+		}
+		int numDocs = 0;
+		for (DocumentGroup group : groups) {
+			numDocs += group.getDocumentCount();
+		}
+
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			//header
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(xml.length());
+			out.writeLong(xml.lastModified());
+			out.writeInt(groups.size());
+			out.writeInt(numDocs);
+
+			//groups.  The children of the groups before a group come right before its own children, so the
+			//parent of a group is the first group whose children have not all been listed yet
+			int nextChild = 1;
+			int nextDoc = 0;
+			int parent = -1;
+			int parentEnd = 1;
+			for (int i = 0; i < groups.size(); i++) {
+				DocumentGroup group = groups.get(i);
+				while (i >= parentEnd) {
+					parent++;
+					parentEnd += groups.get(parent).getChildCount();
+				}
+				out.writeInt(parent);
+				out.writeInt(store.intern(group.getKey()));
+				out.writeInt(nextChild);
+				out.writeInt(group.getChildCount());
+				out.writeInt(nextDoc);
+				out.writeInt(group.getDocumentCount());
+				nextChild += group.getChildCount();
+				nextDoc += group.getDocumentCount();
+			}
+
+			//documents
+			for (DocumentGroup group : groups) {
+				for (int d = 0; d < group.getDocumentCount(); d++) {
+					out.writeInt(group.getDocumentRow(d));
+				}
+			}
+
+			//the store is written last, since the group keys were added to its dictionary
+			store.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		if (snapshot.exists() && !snapshot.delete()) {
+			throw new IOException("Could not replace " + snapshot);
+		}
+		if (!tmp.renameTo(snapshot)) {
+			throw new IOException("Could not rename " + tmp + " to " + snapshot);
+		}
+	}
+
+	/**
+	 * Loads the grouping stored in a snapshot
+	 * @param snapshot is the snapshot file
+	 * @param lazyText is true to leave the parsed and unparsed text in the snapshot until they are needed
+	 * @return the top group, whose key is the database name
+	 * @throws IOException
+	 */
+	public static DocumentGroup read(File snapshot, boolean lazyText) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+
+			//header
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a tree snapshot: " + snapshot);
+			}
+			header.getLong();
+			header.getLong();
+			int numGroups = header.getInt();
+			int numDocs = header.getInt();
+
+			//groups and documents
+			long pos = HEADER_SIZE;
+			int[] groupData = new int[numGroups * GROUP_INTS];
+			map(channel, pos, 4L * groupData.length).asIntBuffer().get(groupData);
+			pos += 4L * groupData.length;
+			int[] rows = new int[numDocs];
+			map(channel, pos, 4L * numDocs).asIntBuffer().get(rows);
+			pos += 4L * numDocs;
+
+			DocumentStore store = DocumentStore.read(channel, pos, snapshot, lazyText);
+
+			//rebuild the groups, level by level
+			DocumentGroup[] groups = new DocumentGroup[numGroups];
+			groups[0] = new DocumentGroup(store.getString(groupData[1]), store);
+			for (int i = 0; i < numGroups; i++) {
+				int g = i * GROUP_INTS;
+				int firstChild = groupData[g + 2];
+				int numChildren = groupData[g + 3];
+				for (int c = firstChild; c < firstChild + numChildren; c++) {
+					groups[c] = groups[i].getOrAddChild(store.getString(groupData[c * GROUP_INTS + 1]));
+				}
+				int firstDoc = groupData[g + 4];
+				int numGroupDocs = groupData[g + 5];
+				for (int d = firstDoc; d < firstDoc + numGroupDocs; d++) {
+					groups[i].addDocument(rows[d]);
+				}
+			}
+			return groups[0];
+		} finally {
+			close(raf);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot section too large to map: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+	}
+
+	private static void close(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+}
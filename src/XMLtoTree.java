@@ -1,16 +1,39 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentFactory;
 import org.dom4j.Element;
+import org.dom4j.ElementHandler;
+import org.dom4j.ElementPath;
 import org.dom4j.io.SAXReader;
-import org.dom4j.tree.DefaultElement;
 
 import prefuse.data.Node;
 import prefuse.data.Table;
 import prefuse.data.Tree;
+import prefuse.data.Tuple;
 import prefuse.data.parser.DataParseException;
 import prefuse.data.parser.DataParser;
 import prefuse.data.parser.ParserFactory;
@@ -18,11 +41,11 @@ import prefuse.data.parser.ParserFactory;
 
 /**
  * Creates a tree from a XML file
- */
-
-/* 
- * TO-DO: it could take a while to generate a tree from a large XML file, so perhaps a
- * progress bar or a waiting screen should be implemented
+ * 
+ * The treemap reads its file in the background through TreeLoader, which takes the documents from
+ * streamParallel(String, int, RecordListener) and adds them to a tree that is already displayed.
+ * parse(String), parseParallel(String, int) and load(String, int) build a whole tree in one call instead.
+ * The treemap does not use them; they are kept for programs that use this class as a library.
  */
 public class XMLtoTree {
 
@@ -44,6 +67,18 @@ public class XMLtoTree {
 	private static final String RACE = "race";
 	private static final String DOB = "dob";
 	private static final String UNKNOWN = "_Not Specified";
+	
+	// Names of the levels of the tree, used in the node labels
+	private static final String[] LEVELS = { "Database", "Author", "Area", "Report Type", "PID" };
+	
+	// Byte patterns used to split the XML into chunks of whole documents
+	private static final byte[] DOC_START = ("<" + DOC).getBytes();
+	private static final byte[] DOC_END = ("</" + DOC + ">").getBytes();
+	private static final int SCAN_BLOCK = 64 * 1024;
+	private static final long MAX_CHUNK = 32 * 1024 * 1024;
+	
+	// Largest chunk read by streamParallel(), whose documents are all kept until they are handed on
+	private static final long MAX_STREAM_CHUNK = 4 * 1024 * 1024;
 
 	private ParserFactory m_pf = ParserFactory.getDefaultFactory();
 	private Class parseType = String.class;
@@ -55,59 +90,140 @@ public class XMLtoTree {
 	
 	private String db = "";
 	private String patDoc = "patDoc";
-	private PatientDocument currDoc = null;
 	
-	private Hashtable<String, ArrayList<String> > dbTable = new Hashtable<String, ArrayList<String> >(64);
-	private Hashtable<String, ArrayList<String> > authTable = new Hashtable<String, ArrayList<String> >(64);
-	private Hashtable<String, ArrayList<String> > areaTable = new Hashtable<String, ArrayList<String> >(64);
-	private Hashtable<String, ArrayList<String> > typeTable = new Hashtable<String, ArrayList<String> >(64);
-	private Hashtable<String, PatientDocument> pidTable = new Hashtable<String, PatientDocument>(64);
+	private DocumentGroup dbGroup = null;
+	private DocumentStore store = null;
+	
+	//node of each group in the tree, so new documents can be added to the tree
+	private HashMap<DocumentGroup, Node> groupNodes = new HashMap<DocumentGroup, Node>();
+	
+	//parent and document row of the nodes, by row of the node, for counting documents
+	private int[] nodeParents = null;
+	private int[] nodeDocs = null;
+	private int countedNodes = 0;
+	
+	//when set, the parsed and unparsed text of the documents are kept in a file instead of in memory
+	private boolean lazyText = false;
+	
+	/**
+	 * Sets whether the parsed and unparsed text of the documents are kept out of memory.  The text is
+	 * then read from the disk when it is asked for, e.g. when the "More" button is pressed.
+	 * @param lazyText is true to keep the text out of memory
+	 */
+	public void setLazyText(boolean lazyText) {
+		this.lazyText = lazyText;
+	}
 	
 	/**
 	 * Parses an XML file and builds a tree.  It assumes that the root will have a "dbName" attribute, as well as
 	 * it makes the assumption that the XML will only have 3 levels: root, document, and the fields for document
+	 * 
+	 * The file is streamed: each document tag is turned into a PatientDocument as soon as it has been read,
+	 * and is then pruned from the dom4j tree, so only the grouped records are kept in memory.
+	 * 
+	 * Library use only, the treemap loads its file with TreeLoader.
 	 * @param filePath is the location of the XML file
 	 * @return the Tree version of the XML
 	 */
 	public Tree parse(String filePath) {
-		//create document object for the xml file, then we can navigate the document object
 		File f = new File(filePath);
 		SAXReader reader = new SAXReader();
-		Document xmlFile;
+		final DocumentHandler docHandler = new DocumentHandler(null);
+		
+		//root element: remember the database name and initialize the tree before any document is read
+		reader.addHandler("/" + RECORDS, new ElementHandler() {
+			public void onStart(ElementPath path) {
+				try {
+					initTree(path.getCurrent().attributeValue(DBNAME));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				docHandler.setGroup(dbGroup);
+			}
+			public void onEnd(ElementPath path) {
+				path.getCurrent().detach();
+			}
+		});
+		
+		//each document record is saved when its end tag is read
+		reader.addHandler("/" + RECORDS + "/" + DOC, docHandler);
+		
 		try {
-			xmlFile = reader.read(f);
+			reader.read(f);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
 		}
 		
-		//root element
-		Element root = xmlFile.getRootElement();
-		db = root.attributeValue(DBNAME);
+		//no root element was found
+		if (m_tree == null) {
+			return null;
+		}
+		
+		treeBuilder(); //build tree
 		
-		//initialize tree
-		m_tree = new Tree();
-		m_nodes = m_tree.getNodeTable();
-		m_nodes.addColumn(db, parseType);
-		m_nodes.addColumn(patDoc, PatientDocument.class);
-		dbTable.put(db, new ArrayList<String>());
+		return m_tree;
+	}
+	
+	/**
+	 * Parses an XML file on several threads and builds a tree.  The file is split at the document end tags
+	 * into chunks of whole documents.  Each chunk is parsed into a grouping and a store of its own, so the
+	 * threads share nothing, and the chunks are merged in file order as they are done.  The documents
+	 * therefore get the same rows as with parse(String), and the tree is the same.
+	 * 
+	 * Library use only, the treemap loads its file with TreeLoader.
+	 * @param filePath is the location of the XML file
+	 * @param threads is the number of threads used to parse the file
+	 * @return the Tree version of the XML
+	 */
+	public Tree parseParallel(String filePath, int threads) {
+		if (threads < 2) {
+			return parse(filePath);
+		}
 		
-		//get each document record
-		Iterator docIter = root.elementIterator();
-		while (docIter.hasNext()) {
-			Element docTag = (Element)docIter.next();
-			currDoc = new PatientDocument();
-			
-			//remember the fields in the document
-			Object[] fields = docTag.elements().toArray();	
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(filePath, "r");
+			final FileChannel channel = raf.getChannel();
 			
-			//read each field and get its text
-			for(int i = 0; i < fields.length; i++) {
-				DefaultElement currField = (DefaultElement)fields[i];
-				processText(currField.getName(), currField.getText());
+			final Chunks chunks = splitChunks(channel, threads, MAX_CHUNK);
+			if (chunks == null) {
+				//no documents, so there is nothing to split
+				return parse(filePath);
 			}
+			initTree(chunks.dbName);
 			
-			saveCurrentRecord(); //save the current document record
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				int numChunks = chunks.bounds.size() - 1;
+				LinkedList<Future<DocumentGroup>> parsing = new LinkedList<Future<DocumentGroup>>();
+				int next = 0;
+				for (int i = 0; i < numChunks; i++) {
+					//keep every thread busy, with one more chunk ready for when the merging catches up
+					while (next < numChunks && next <= i + threads) {
+						final int chunk = next++;
+						parsing.add(pool.submit(new Callable<DocumentGroup>() {
+							public DocumentGroup call() throws Exception {
+								return groupChunk(channel, chunks, chunk);
+							}
+						}));
+					}
+					dbGroup.merge(parsing.removeFirst().get());
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
 		}
 		
 		treeBuilder(); //build tree
@@ -116,148 +232,488 @@ public class XMLtoTree {
 	}
 	
 	/**
-	 * Stores the information read in the document tag, which will later be used to build a tree
+	 * Builds a tree from the snapshot of an XML file, which is much faster than parsing the XML.  If there is
+	 * no snapshot, or the XML has changed since the snapshot was taken, the XML is parsed in parallel and a
+	 * new snapshot is written next to it.
+	 * 
+	 * Library use only, the treemap loads its file with TreeLoader.
+	 * @param filePath is the location of the XML file
+	 * @param threads is the number of threads used if the XML has to be parsed
+	 * @return the Tree version of the XML
 	 */
-	private void saveCurrentRecord() {
-		//convert to all upper case because "same" entries might be available in various cases,
-		//so to group these entries, use only one case
-		String currAuth = currDoc.getAuthname().trim().toUpperCase();
-		String currArea = currDoc.getArea().trim().toUpperCase();
-		String currType = currDoc.getType().trim().toUpperCase();
-		String currPID = currDoc.getPID().trim();
-
-		//fields cannot be empty
-		if (currAuth.equals("")) {
-			currAuth = UNKNOWN;
+	public Tree load(String filePath, int threads) {
+		File xml = new File(filePath);
+		File snapshot = TreeSnapshot.snapshotFile(filePath);
+		
+		if (TreeSnapshot.isCurrent(snapshot, xml)) {
+			try {
+				DocumentGroup group = TreeSnapshot.read(snapshot, lazyText);
+				initTree(group.getKey());
+				dbGroup = group;
+				store = group.getStore();
+				treeBuilder(); //build tree
+				return m_tree;
+			} catch (IOException e) {
+				//fall back to the XML
+				System.err.println("Error reading snapshot " + snapshot);
+				e.printStackTrace();
+			}
 		}
-		if (currArea.equals("")) {
-			currArea = UNKNOWN;
+		
+		Tree t = parseParallel(filePath, threads);
+		if (t != null) {
+			try {
+				TreeSnapshot.write(dbGroup, xml, snapshot);
+			} catch (IOException e) {
+				System.err.println("Error writing snapshot " + snapshot);
+				e.printStackTrace();
+			}
 		}
-		if (currType.equals("")) {
-			currType = UNKNOWN;
+		return t;
+	}
+	
+	/**
+	 * Creates a tree that only has its root, which documents can then be added to with append(List) or
+	 * setDocuments(DocumentGroup)
+	 * @param dbName is the database name, which is also the name of the column the node keys are kept in
+	 * @return the tree
+	 * @throws IOException
+	 */
+	public Tree createTree(String dbName) throws IOException {
+		initTree(dbName);
+		treeBuilder(); //build tree
+		return m_tree;
+	}
+	
+	/**
+	 * Reads the documents of an XML file one at a time, without grouping them.  Each document is pruned
+	 * from the dom4j tree once it has been handed to the listener, like in parse(String).
+	 * @param filePath is the location of the XML file
+	 * @param listener receives the documents, and can stop the reading
+	 * @return true if the whole file was read, false if the listener stopped the reading
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	public boolean stream(String filePath, final RecordListener listener) throws IOException, DocumentException {
+		final CountingInputStream in = new CountingInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+		SAXReader reader = new SAXReader();
+		reader.addHandler("/" + RECORDS + "/" + DOC, new ElementHandler() {
+			public void onStart(ElementPath path) {
+			}
+			public void onEnd(ElementPath path) {
+				Element docTag = path.getCurrent();
+				PatientDocument currDoc = readDocument(docTag);
+				docTag.getParent().clearContent();
+				if (!listener.recordRead(currDoc, in.getCount())) {
+					throw new StopReading();
+				}
+			}
+		});
+		
+		try {
+			reader.read(in);
+		} catch (StopReading s) {
+			return false;
+		} catch (DocumentException e) {
+			//dom4j wraps the exceptions thrown by the handlers
+			if (e.getNestedException() instanceof StopReading) {
+				return false;
+			}
+			throw e;
+		} finally {
+			in.close();
 		}
-		if (currPID.equals("")) {
-			currPID = UNKNOWN;
+		return true;
+	}
+	
+	/**
+	 * Reads the documents of an XML file like stream(String, RecordListener), parsing parts of the file on
+	 * several threads.  The documents are still handed to the listener one at a time and in the order of
+	 * the file, from the thread that called this method.  Only a few parts are parsed ahead of the listener,
+	 * so memory use does not grow with the file.
+	 * @param filePath is the location of the XML file
+	 * @param threads is the number of threads used to parse the file
+	 * @param listener receives the documents, and can stop the reading
+	 * @return true if the whole file was read, false if the listener stopped the reading
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	public boolean streamParallel(String filePath, int threads, RecordListener listener) throws IOException, DocumentException {
+		if (threads < 2) {
+			return stream(filePath, listener);
 		}
 		
-		pidTable.put(currPID, currDoc);
-		
-		//retrieve the appropriate list
-		ArrayList<String> authList = dbTable.get(db);
-		ArrayList<String> areaList = authTable.get(db + "_" + currAuth);
-		ArrayList<String> typeList = areaTable.get(db + "_" + currAuth + "_" + currArea);
-		ArrayList<String> pidList = typeTable.get(db + "_" + currAuth + "_" + currArea + "_" + currType);
-		
-		//if new author
-		if (authList.size() == 0 || !authList.contains(currAuth)) {
-			areaList = new ArrayList<String>();
-			typeList = new ArrayList<String>();
-			pidList = new ArrayList<String>();
-			
-			authList.add(currAuth);
-			areaList.add(currArea);
-			typeList.add(currType);
-			pidList.add(currPID);
-			
-			dbTable.put(db, authList);
-			authTable.put(db + "_" + currAuth, areaList);
-			areaTable.put(db + "_" + currAuth + "_" + currArea, typeList);
-			typeTable.put(db + "_" + currAuth + "_" + currArea + "_" + currType, pidList);
+		RandomAccessFile raf = new RandomAccessFile(filePath, "r");
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final FileChannel channel = raf.getChannel();
+			final Chunks chunks = splitChunks(channel, threads, MAX_STREAM_CHUNK);
+			if (chunks == null) {
+				return true;
+			}
+			int numChunks = chunks.bounds.size() - 1;
+			LinkedList<Future<List<PatientDocument>>> parsing = new LinkedList<Future<List<PatientDocument>>>();
+			int next = 0;
+			for (int i = 0; i < numChunks; i++) {
+				//keep every thread busy, with one more chunk ready for when the listener catches up
+				while (next < numChunks && next <= i + threads) {
+					final int chunk = next++;
+					parsing.add(pool.submit(new Callable<List<PatientDocument>>() {
+						public List<PatientDocument> call() throws Exception {
+							return readChunk(channel, chunks, chunk);
+						}
+					}));
+				}
+				long bytesRead = chunks.bounds.get(i + 1);
+				for (PatientDocument doc : parsing.removeFirst().get()) {
+					if (!listener.recordRead(doc, bytesRead)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			throw new IOException("Reading " + filePath + " was interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DocumentException) {
+				throw (DocumentException)e.getCause();
+			}
+			throw new IOException("Error reading " + filePath + ": " + e.getCause());
+		} finally {
+			pool.shutdownNow();
+			raf.close();
 		}
-		
-		//else if current author exists, but new area
-		else if (!areaList.contains(currArea)) {
-			typeList = new ArrayList<String>();
-			pidList = new ArrayList<String>();
-
-			areaList.add(currArea);
-			typeList.add(currType);
-			pidList.add(currPID);
-			
-			authTable.put(db + "_" + currAuth, areaList);
-			areaTable.put(db + "_" + currAuth + "_" + currArea, typeList);
-			typeTable.put(db + "_" + currAuth + "_" + currArea + "_" + currType, pidList);
+	}
+	
+	/**
+	 * Reads the snapshot of an XML file, if there is one and it is current
+	 * @param filePath is the location of the XML file
+	 * @return the grouping stored in the snapshot, or null if the XML has to be read
+	 */
+	public DocumentGroup readSnapshot(String filePath) {
+		File snapshot = TreeSnapshot.snapshotFile(filePath);
+		if (!TreeSnapshot.isCurrent(snapshot, new File(filePath))) {
+			return null;
+		}
+		try {
+			return TreeSnapshot.read(snapshot, lazyText);
+		} catch (IOException e) {
+			System.err.println("Error reading snapshot " + snapshot);
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the documents in the tree, which should be all the documents of the XML file
+	 * @param filePath is the location of the XML file
+	 */
+	public synchronized void writeSnapshot(String filePath) {
+		File snapshot = TreeSnapshot.snapshotFile(filePath);
+		try {
+			TreeSnapshot.write(dbGroup, new File(filePath), snapshot);
+		} catch (IOException e) {
+			System.err.println("Error writing snapshot " + snapshot);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Groups a record that was not read from XML, such as a row of the database, the same way as the
+	 * documents of the XML are grouped
+	 * @param group is the grouping the record is added to
+	 * @param fields is the names of the fields of the record
+	 * @param values is the text of the fields, as it would be read from the XML
+	 * @throws IOException
+	 */
+	public static void groupRecord(DocumentGroup group, String[] fields, String[] values) throws IOException {
+		PatientDocument currDoc = new PatientDocument();
+		for (int i = 0; i < fields.length; i++) {
+			processText(currDoc, fields[i], values[i]);
+		}
+		saveRecord(group, currDoc);
+	}
+	
+	/**
+	 * Adds a whole grouping, such as one read from a snapshot, to a tree that has no documents yet.  The
+	 * documents are kept in the store of the grouping.
+	 * @param group is the grouping
+	 */
+	public synchronized void setDocuments(DocumentGroup group) {
+		if (store.size() > 0) {
+			throw new IllegalStateException("The tree already has documents");
+		}
+		dbGroup = group;
+		store = group.getStore();
+		treeBuilder(); //build tree
+	}
+	
+	/**
+	 * Adds documents to the tree that has already been built.  The documents are grouped like the ones
+	 * read from the XML, and groups that do not exist yet are added to the tree.
+	 * @param docs is the new documents
+	 * @return the author nodes that documents were added under, in the order they were first changed
+	 * @throws IOException
+	 */
+	public synchronized List<Node> append(List<PatientDocument> docs) throws IOException {
+		LinkedHashSet<Node> changed = new LinkedHashSet<Node>();
+		try {
+			for (PatientDocument doc : docs) {
+				DocumentGroup type = saveRecord(dbGroup, doc);
+				int row = type.getDocumentRow(type.getDocumentCount() - 1);
+				Node n = m_tree.addChild(getNode(type));
+				n.set(db, dp.parse(pidKey(row)));
+				n.setInt(patDoc, row);
+				changed.add(getNode(type.getParent().getParent()));
+			}
+		} catch (DataParseException d) {
+			throw new RuntimeException(d);
+		}
+		return new ArrayList<Node>(changed);
+	}
+	
+	/**
+	 * Gets the node of a group, adding it and the nodes of its ancestors to the tree if they are not there yet
+	 * @param group is the group
+	 * @return the node
+	 * @throws DataParseException
+	 */
+	private Node getNode(DocumentGroup group) throws DataParseException {
+		Node n = groupNodes.get(group);
+		if (n == null) {
+			n = m_tree.addChild(getNode(group.getParent()));
+			n.set(db, dp.parse(group.getKey()));
+			groupNodes.put(group, n);
 		}
+		return n;
+	}
+	
+	/**
+	 * Gets the document of a node
+	 * @param item is a node of the tree
+	 * @return the document, or null if the node is not a document
+	 */
+	public PatientDocument getDocument(Tuple item) {
+		int row = getDocumentRow(item);
+		if (row < 0) {
+			return null;
+		}
+		return store.get(row);
+	}
+	
+	/**
+	 * Gets the row of the document of a node in the store
+	 * @param item is a node of the tree
+	 * @return the row, or -1 if the node is not a document
+	 */
+	public int getDocumentRow(Tuple item) {
+		return item.getInt(patDoc);
+	}
+	
+	/**
+	 * Counts the documents under each node of the tree, and how many of them are in a set of documents, in
+	 * one pass over the nodes.  A node is always added after its parent, so going through the nodes from the
+	 * last one added to the first, the counts of a node are complete by the time they are added to the
+	 * counts of its parent.
+	 * @param rows is the rows of a set of documents, such as search results
+	 * @return the number of documents under each node that are in the set, and the number of all documents
+	 * under each node, by row of the node in the tree
+	 */
+	public synchronized int[][] countDocuments(BitSet rows) {
+		//the parent and document of the nodes added since the last count are copied out of the tree first
+		int numNodes = m_nodes.getMaximumRow() + 1;
+		if (nodeParents == null || nodeParents.length < numNodes) {
+			int[] parents = new int[Math.max(numNodes, countedNodes * 2)];
+			int[] docs = new int[parents.length];
+			if (nodeParents != null) {
+				System.arraycopy(nodeParents, 0, parents, 0, countedNodes);
+				System.arraycopy(nodeDocs, 0, docs, 0, countedNodes);
+			}
+			nodeParents = parents;
+			nodeDocs = docs;
+		}
+		for (int node = countedNodes; node < numNodes; node++) {
+			if (m_nodes.isValidRow(node)) {
+				nodeParents[node] = m_tree.getParent(node);
+				nodeDocs[node] = m_nodes.getInt(node, patDoc);
+			} else {
+				nodeParents[node] = -1;
+				nodeDocs[node] = -1;
+			}
+		}
+		countedNodes = numNodes;
 		
-		//else if current author & area exist, but new report type
-		else if (!typeList.contains(currType)) {
-			pidList = new ArrayList<String>();
-			
-			typeList.add(currType);
-			pidList.add(currPID);
-			
-			areaTable.put(db + "_" + currAuth + "_" + currArea, typeList);
-			typeTable.put(db + "_" + currAuth + "_" + currArea + "_" + currType, pidList);
+		int[] matches = new int[numNodes];
+		int[] all = new int[numNodes];
+		for (int node = numNodes - 1; node >= 0; node--) {
+			int row = nodeDocs[node];
+			if (row >= 0) {
+				all[node]++;
+				if (rows.get(row)) {
+					matches[node]++;
+				}
+			}
+			int parent = nodeParents[node];
+			if (parent >= 0) {
+				matches[parent] += matches[node];
+				all[parent] += all[node];
+			}
 		}
-		//else if current author, area, and report type exist, just add the pid
-		else {
-			pidList.add(currPID);
-			
-			typeTable.put(db + "_" + currAuth + "_" + currArea + "_" + currType, pidList);
+		return new int[][] { matches, all };
+	}
+	
+	/**
+	 * @return the store the documents of the tree are kept in
+	 */
+	public DocumentStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * Gets the label of a node, which names the node and all of its ancestors, e.g.
+	 * " Database: db \n Author: name \n Area: area ".  Nodes only keep their own key, so the label is
+	 * built by walking up to the root.
+	 * @param node is a node of the tree, or a visual item of one
+	 * @param column is the column the keys are kept in, which is the database name
+	 * @return the label, or just the database name for the root
+	 */
+	public static String getLabel(Node node, String column) {
+		int depth = node.getDepth();
+		if (depth == 0) {
+			return node.getString(column);
+		}
+		String[] keys = new String[depth + 1];
+		for (Node n = node; n != null; n = n.getParent()) {
+			keys[n.getDepth()] = n.getString(column);
+		}
+		StringBuilder label = new StringBuilder();
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0) {
+				label.append('\n');
+			}
+			label.append(' ').append(LEVELS[i]).append(": ").append(keys[i]).append(' ');
+		}
+		return label.toString();
+	}
+	
+	/**
+	 * Initializes the tree and its columns, and an empty grouping over a new document store
+	 * @param dbName is the database name found in the root of the XML
+	 * @throws IOException
+	 */
+	private void initTree(String dbName) throws IOException {
+		db = dbName;
+		m_tree = new Tree();
+		m_nodes = m_tree.getNodeTable();
+		m_nodes.addColumn(db, parseType);
+		m_nodes.addColumn(patDoc, int.class, -1); //row of the document in the store
+		nodeParents = null;
+		nodeDocs = null;
+		countedNodes = 0;
+		store = new DocumentStore(lazyText ? TextStore.createTemp() : TextStore.createMemory());
+		dbGroup = new DocumentGroup(db, store);
+	}
+	
+	/**
+	 * Stores the information read in the document tag, which will later be used to build a tree
+	 * @param group is the grouping the document is added to
+	 * @param doc is the document
+	 * @return the report type group the document was added to
+	 * @throws IOException
+	 */
+	private static DocumentGroup saveRecord(DocumentGroup group, PatientDocument doc) throws IOException {
+		DocumentGroup type = childGroup(childGroup(childGroup(group, doc.getAuthname()), doc.getArea()), doc.getType());
+		type.addDocument(group.getStore().add(doc));
+		return type;
+	}
+	
+	/**
+	 * Gets the child group of a field.  The key is only made the first time the text of the field is seen
+	 * under the group, so grouping a record allocates nothing once its groups exist.
+	 * @param group is the parent group
+	 * @param field is the text of the field
+	 * @return the child group
+	 */
+	private static DocumentGroup childGroup(DocumentGroup group, String field) {
+		DocumentGroup child = group.getChildByText(field);
+		if (child == null) {
+			child = group.getOrAddChild(field, groupKey(field));
+		}
+		return child;
+	}
+	
+	/**
+	 * Gets the key used to group a field.  Converts to all upper case because "same" entries
+	 * might be available in various cases, so to group these entries, use only one case
+	 * @param field is the text of the field
+	 * @return the key, which is never empty
+	 */
+	private static String groupKey(String field) {
+		String key = field.trim().toUpperCase();
+		//fields cannot be empty
+		if (key.length() == 0) {
+			return UNKNOWN;
+		}
+		return key;
+	}
+	
+	/**
+	 * Gets the PID used to name a document's node
+	 * @param row is the row of the document in the store
+	 * @return the PID, which is never empty
+	 */
+	private String pidKey(int row) {
+		String pid = store.getPID(row).trim();
+		if (pid.length() == 0) {
+			return UNKNOWN;
 		}
+		return pid;
 	}
 		  
 	/**
-	 * Builds the tree
+	 * Builds the tree.  Each node only keeps its own key; see getLabel(Node, String) for its full name.
 	 */
 	private void treeBuilder() {
-		String currAuth;
-		String currArea;
-		String currType;
-		String currPID;
-		
-		//because no direct way of establishing a node's parents, adjust the node's
-		//name to contain this information
-		String authFull;
-		String areaFull;
-		String typeFull;
-		String pidFull;
-
-		ArrayList<String> authList = dbTable.get(db);
-		ArrayList<String> areaList;
-		ArrayList<String> typeList;
-		ArrayList<String> pidList;
-		
-		m_activeNode = m_tree.addRoot();
 		try {
-			m_activeNode.set(db, dp.parse(db));
+			//the root is only added once, since the documents can be added after the tree is displayed
+			if (m_tree.getNodeCount() == 0) {
+				m_activeNode = m_tree.addRoot();
+				m_activeNode.set(db, dp.parse(db));
+			}
+			m_activeNode = m_tree.getRoot();
+			groupNodes.clear();
+			groupNodes.put(dbGroup, m_activeNode);
 			
 			Node n;
 			
 			//go through each author in the list
-			for (String author : authList) {
-				currAuth = db + "_" + author;
-				authFull = " Database: " + db + " \n Author: " + author + " ";
+			for (DocumentGroup author : dbGroup.getChildren()) {
 				n = m_tree.addChild(m_activeNode);
 				m_activeNode = n;
-				m_activeNode.set(db, dp.parse(authFull)); //add node
+				m_activeNode.set(db, dp.parse(author.getKey())); //add node
+				groupNodes.put(author, m_activeNode);
 				
 				//go through each area in the current author
-				areaList = authTable.get(currAuth);
-				for (String area : areaList) {
-					currArea = currAuth + "_" + area;
-					areaFull = authFull + "\n Area: " + area + " ";
+				for (DocumentGroup area : author.getChildren()) {
 					n = m_tree.addChild(m_activeNode);
 					m_activeNode = n;
-					m_activeNode.set(db, dp.parse(areaFull)); //add node
+					m_activeNode.set(db, dp.parse(area.getKey())); //add node
+					groupNodes.put(area, m_activeNode);
 					
 					//go through each report type in the current area
-					typeList = areaTable.get(currArea);
-					for (String type : typeList) {
-						currType = currArea + "_" + type;
-						typeFull = areaFull + "\n Report Type: " + type + " ";
+					for (DocumentGroup type : area.getChildren()) {
 						n = m_tree.addChild(m_activeNode);
 						m_activeNode = n;
-						m_activeNode.set(db, dp.parse(typeFull)); //add node
+						m_activeNode.set(db, dp.parse(type.getKey())); //add node
+						groupNodes.put(type, m_activeNode);
 						
-						//go through each pid in the current report type
-						pidList = typeTable.get(currType);
-						for(String pid : pidList) {
-							pidFull = typeFull + "\n PID: " + pid + " ";
+						//go through each document in the current report type
+						for (int d = 0; d < type.getDocumentCount(); d++) {
+							int row = type.getDocumentRow(d);
 							n = m_tree.addChild(m_activeNode);
 							m_activeNode = n;
-							m_activeNode.set(db, dp.parse(pidFull)); //add node
-							m_activeNode.set(patDoc, pidTable.get(pid)); //add the PatientDocument
+							m_activeNode.set(db, dp.parse(pidKey(row))); //add node
+							m_activeNode.setInt(patDoc, row); //add the row of the PatientDocument
 							
 							m_activeNode = m_activeNode.getParent(); //get pid's parent (current report type)
 						}
@@ -272,12 +728,30 @@ public class XMLtoTree {
 		}
 	}
 	
+	/**
+	 * Reads a document tag
+	 * @param docTag is the document tag
+	 * @return the document
+	 */
+	private static PatientDocument readDocument(Element docTag) {
+		PatientDocument currDoc = new PatientDocument();
+		
+		//read each field and get its text
+		Iterator fieldIter = docTag.elementIterator();
+		while (fieldIter.hasNext()) {
+			Element currField = (Element)fieldIter.next();
+			processText(currDoc, currField.getName(), currField.getText());
+		}
+		return currDoc;
+	}
+	
 	/**
 	 * Sets the data in the PatientDocument
+	 * @param currDoc is the document being read
 	 * @param field is the current field
 	 * @param text is the text in the field
 	 */
-	private void processText(String field, String text) {
+	private static void processText(PatientDocument currDoc, String field, String text) {
 		if (field == null) {
 			return;
 		}
@@ -320,5 +794,303 @@ public class XMLtoTree {
 		else if (field.equals(DOB)) {
 			currDoc.setDOB(text);
 		}
-	} 
-} 
+	}
+	
+	/**
+	 * Splits the documents of an XML file into chunks of whole documents, which can be parsed on their own
+	 * @param channel is the file
+	 * @param threads is the number of threads the chunks are parsed on
+	 * @param maxChunk is the largest size of a chunk, in bytes
+	 * @return the chunks, or null if the file has no documents
+	 * @throws IOException
+	 * @throws DocumentException if the start of the file is not valid
+	 */
+	private static Chunks splitChunks(FileChannel channel, int threads, long maxChunk) throws IOException, DocumentException {
+		//find where the documents start and end
+		long first = indexOf(channel, DOC_START, 0);
+		long last = lastIndexOf(channel, DOC_END, channel.size());
+		if (first < 0 || last < 0) {
+			return null;
+		}
+		last += DOC_END.length;
+		
+		//read the header to get the database name and the encoding
+		byte[] header = read(channel, 0, first);
+		SAXReader reader = new SAXReader();
+		Document headerDoc = reader.read(new SequenceInputStream(new ByteArrayInputStream(header),
+				new ByteArrayInputStream(("</" + RECORDS + ">").getBytes())));
+		String encoding = headerDoc.getXMLEncoding();
+		if (encoding == null) {
+			encoding = "UTF-8";
+		}
+		Chunks chunks = new Chunks();
+		chunks.dbName = headerDoc.getRootElement().attributeValue(DBNAME);
+		chunks.prefix = "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?><" + RECORDS + ">";
+		
+		//split the documents into chunks that end right after a document end tag
+		long numChunks = Math.max(threads * 4, (last - first) / maxChunk + 1);
+		long chunkSize = (last - first) / numChunks + 1;
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		bounds.add(first);
+		for (long target = first + chunkSize; target < last; target += chunkSize) {
+			long end = indexOf(channel, DOC_END, Math.max(target, bounds.get(bounds.size() - 1)));
+			if (end < 0 || end + DOC_END.length >= last) {
+				break;
+			}
+			bounds.add(end + DOC_END.length);
+		}
+		bounds.add(last);
+		chunks.bounds = bounds;
+		return chunks;
+	}
+	
+	/**
+	 * Opens a chunk as an XML document of its own
+	 * @param channel is the file
+	 * @param chunks is the chunks of the file
+	 * @param i is the chunk
+	 * @return the stream of the document
+	 * @throws IOException
+	 */
+	private static InputStream openChunk(FileChannel channel, Chunks chunks, int i) throws IOException {
+		byte[] chunk = read(channel, chunks.bounds.get(i), chunks.bounds.get(i + 1));
+		return new SequenceInputStream(new ByteArrayInputStream(chunks.prefix.getBytes()),
+				new SequenceInputStream(new ByteArrayInputStream(chunk),
+						new ByteArrayInputStream(("</" + RECORDS + ">").getBytes())));
+	}
+	
+	/**
+	 * Reads the documents of a chunk, without grouping them
+	 * @param channel is the file
+	 * @param chunks is the chunks of the file
+	 * @param i is the chunk
+	 * @return the documents, in the order of the file
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	private static List<PatientDocument> readChunk(FileChannel channel, Chunks chunks, int i) throws IOException, DocumentException {
+		final ArrayList<PatientDocument> docs = new ArrayList<PatientDocument>();
+		//each worker gets its own factory, since the default factory's name cache is shared
+		SAXReader reader = new SAXReader(new DocumentFactory());
+		reader.addHandler("/" + RECORDS + "/" + DOC, new ElementHandler() {
+			public void onStart(ElementPath path) {
+			}
+			public void onEnd(ElementPath path) {
+				Element docTag = path.getCurrent();
+				docs.add(readDocument(docTag));
+				docTag.getParent().clearContent();
+			}
+		});
+		reader.read(openChunk(channel, chunks, i));
+		return docs;
+	}
+	
+	/**
+	 * Parses a chunk into a grouping whose documents are kept in a store of its own
+	 * @param channel is the file
+	 * @param chunks is the chunks of the file
+	 * @param i is the chunk
+	 * @return the grouping
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	private static DocumentGroup groupChunk(FileChannel channel, Chunks chunks, int i) throws IOException, DocumentException {
+		DocumentGroup group = new DocumentGroup(chunks.dbName, new DocumentStore(TextStore.createMemory()));
+		//each worker gets its own factory, since the default factory's name cache is shared
+		SAXReader reader = new SAXReader(new DocumentFactory());
+		reader.addHandler("/" + RECORDS + "/" + DOC, new DocumentHandler(group));
+		reader.read(openChunk(channel, chunks, i));
+		return group;
+	}
+	
+	/**
+	 * Reads a chunk of the file
+	 * @param channel is the file
+	 * @param start is the position of the first byte
+	 * @param end is the position after the last byte
+	 * @return the bytes in the chunk
+	 * @throws IOException
+	 */
+	private static byte[] read(FileChannel channel, long start, long end) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int)(end - start));
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, start + buf.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		return buf.array();
+	}
+	
+	/**
+	 * Finds the first occurrence of a pattern in the file
+	 * @param channel is the file
+	 * @param pattern is the bytes to look for
+	 * @param from is the position to start looking from
+	 * @return the position of the pattern, or -1 if it could not be found
+	 * @throws IOException
+	 */
+	private static long indexOf(FileChannel channel, byte[] pattern, long from) throws IOException {
+		long size = channel.size();
+		//blocks overlap so a pattern that falls across two blocks is still found
+		for (long pos = from; pos < size; pos += SCAN_BLOCK - pattern.length) {
+			byte[] block = read(channel, pos, Math.min(size, pos + SCAN_BLOCK));
+			int i = find(block, pattern, false);
+			if (i >= 0) {
+				return pos + i;
+			}
+			if (pos + block.length >= size) {
+				break;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds the last occurrence of a pattern in the file
+	 * @param channel is the file
+	 * @param pattern is the bytes to look for
+	 * @param to is the position to look back from
+	 * @return the position of the pattern, or -1 if it could not be found
+	 * @throws IOException
+	 */
+	private static long lastIndexOf(FileChannel channel, byte[] pattern, long to) throws IOException {
+		for (long end = to; end > 0; end -= SCAN_BLOCK - pattern.length) {
+			long start = Math.max(0, end - SCAN_BLOCK);
+			int i = find(read(channel, start, end), pattern, true);
+			if (i >= 0) {
+				return start + i;
+			}
+			if (start == 0) {
+				break;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds a pattern in a block of bytes
+	 * @param block is the bytes to search
+	 * @param pattern is the bytes to look for
+	 * @param last is true to find the last occurrence instead of the first
+	 * @return the index of the pattern, or -1 if it could not be found
+	 */
+	private static int find(byte[] block, byte[] pattern, boolean last) {
+		int n = block.length - pattern.length;
+		for (int k = 0; k <= n; k++) {
+			int i = last ? n - k : k;
+			int j = 0;
+			while (j < pattern.length && block[i + j] == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Handler that turns each document tag into a PatientDocument and groups it as soon as the end tag
+	 * is read.  The record is then pruned so the dom4j tree does not grow with the file.
+	 */
+	private static class DocumentHandler implements ElementHandler {
+		private DocumentGroup group;
+		
+		/**
+		 * Constructor.
+		 * @param group is the grouping the documents are added to
+		 */
+		public DocumentHandler(DocumentGroup group) {
+			this.group = group;
+		}
+		
+		public void setGroup(DocumentGroup group) {
+			this.group = group;
+		}
+		
+		public void onStart(ElementPath path) {
+		}
+		
+		public void onEnd(ElementPath path) {
+			Element docTag = path.getCurrent();
+			PatientDocument currDoc = readDocument(docTag);
+			
+			try {
+				saveRecord(group, currDoc); //save the current document record
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			
+			//the whole content of the root is cleared since the whitespace between records would 
+			//otherwise pile up in it
+			docTag.getParent().clearContent();
+		}
+	}
+	
+	/**
+	 * The documents of an XML file, split into chunks of whole documents
+	 */
+	private static class Chunks {
+		private String dbName;
+		//text that opens the root element of a chunk
+		private String prefix;
+		//positions where the chunks start, followed by the end of the last chunk
+		private ArrayList<Long> bounds;
+	}
+	
+	/**
+	 * Receives the documents read by stream(String, RecordListener)
+	 */
+	public interface RecordListener {
+		/**
+		 * @param doc is the document that was read
+		 * @param bytesRead is the number of bytes of the file read so far
+		 * @return false to stop reading the file
+		 */
+		boolean recordRead(PatientDocument doc, long bytesRead);
+	}
+	
+	/**
+	 * Thrown from a handler to stop reading a file
+	 */
+	private static class StopReading extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * Stream that counts the bytes read from it
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+		
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+		
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
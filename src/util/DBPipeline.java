@@ -0,0 +1,356 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import util.XMLRecordWriter;
+
+/**
+ * Builds everything the treemap reads from the database in one pass over the table: the XML file (like
+ * DBtoXML), the Lucene index (like LuceneIndexBuilder) and the snapshot of the grouped documents (like the
+ * one XMLtoTree writes after parsing the XML).
+ *
+ * Run the main() function to refresh all three.  Specify the database name in the main().
+ */
+
+/*
+ * The table is read on one thread, and each row is handed to three stages that run on their own threads:
+ * the XML writer, the index writer and the grouping.  The queues between them are bounded, so a stage that
+ * falls behind makes the reading wait instead of piling up rows in memory, and the whole run takes about as
+ * long as the slowest stage.
+ *
+ * The XML file and the index are written to temporary paths, and only replace the old ones once every
+ * stage has finished, so a failed run leaves the old files as they were.  The snapshot is written last,
+ * once the XML file is in place, since it records the size and time of the XML file it matches.
+ */
+public class DBPipeline {
+
+	//number of rows the database sends at a time
+	private static final int FETCH_SIZE = 1000;
+
+	//number of rows waiting for each stage
+	private static final int QUEUE_SIZE = 1000;
+
+	private String dataDir = "./data/";
+	private String indexDir = dataDir + "LuceneIndex";
+	private String dbIP = "127.0.0.1";
+	private String dbPort = "80";
+	private String dbRootPath = "reports";
+	private String dbTable = "data";
+
+	/**
+	 * Reads the table and writes the XML file, the index and the snapshot, replacing the old ones
+	 * @param indexThreads is the number of threads that analyze the documents for the index
+	 * @throws Exception
+	 */
+	public void refresh(final int indexThreads) throws Exception {
+		long start = System.currentTimeMillis();
+		Connection con = connect();
+		Statement stmt = null;
+		ResultSet rs = null;
+		String xmlPath = dataDir + dbTable + ".xml";
+		final File xmlTmp = new File(xmlPath + ".tmp");
+		final File indexTmp = new File(indexDir + ".tmp");
+		final DocumentGroup group = new DocumentGroup(dbTable, new DocumentStore(TextStore.createTemp()));
+		Stage[] stages = null;
+		int numRows = 0;
+		long readTime = 0;
+		Exception error = null;
+		try {
+			stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(FETCH_SIZE);
+			rs = stmt.executeQuery("SELECT * FROM " + dbTable);
+
+			final String[] columns = getColumns(rs.getMetaData());
+			final int pidIndex = Arrays.asList(columns).indexOf("pid");
+			stages = new Stage[] {
+				new Stage("XML") {
+					private XMLRecordWriter xml = null;
+
+					protected void open() throws Exception {
+						xml = new XMLRecordWriter(xmlTmp.getPath(), dbTable, columns);
+					}
+					protected void process(String[] values) throws Exception {
+						xml.write(values);
+					}
+					protected void finish() throws Exception {
+						xml.close();
+					}
+					protected void abort() throws Exception {
+						if (xml != null) {
+							xml.abort();
+						}
+					}
+				},
+				new Stage("index") {
+					private LuceneIndexBuilder index = null;
+
+					protected void open() throws Exception {
+						index = new LuceneIndexBuilder(dbTable, indexTmp.getPath());
+						index.startIndexing(columns, indexThreads);
+					}
+					protected void process(String[] values) throws Exception {
+						//without a pid, the rows are spread over the index threads by count
+						index.index(values, pidIndex < 0 ? null : values[pidIndex]);
+					}
+					protected void finish() throws Exception {
+						index.finishIndexing();
+					}
+					protected void abort() {
+						if (index != null) {
+							index.abortIndexing();
+						}
+					}
+				},
+				new Stage("grouping") {
+					protected void open() {
+					}
+					protected void process(String[] values) throws Exception {
+						//the text is grouped the way it will be read back from the XML
+						String[] text = new String[values.length];
+						for (int i = 0; i < values.length; i++) {
+							text[i] = XMLRecordWriter.trimText(values[i]);
+						}
+						XMLtoTree.groupRecord(group, columns, text);
+					}
+					protected void finish() {
+					}
+					protected void abort() {
+					}
+				}
+			};
+			for (Stage stage : stages) {
+				stage.open();
+				stage.start();
+			}
+
+			while (rs.next()) {
+				String[] values = new String[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					values[i] = rs.getString(i + 1);
+				}
+				//the stages only read the values, so they can share them
+				for (Stage stage : stages) {
+					stage.add(values);
+				}
+				numRows++;
+			}
+		} catch (Exception e) {
+			error = e;
+		}
+		readTime = System.currentTimeMillis() - start;
+		if (stages != null) {
+			//the stages throw away their work if the rows could not all be read
+			for (Stage stage : stages) {
+				if (stage.getState() != Thread.State.NEW) {
+					stage.end(error == null);
+				}
+			}
+			for (Stage stage : stages) {
+				try {
+					if (stage.getState() == Thread.State.NEW) {
+						//the stage did not open, or was not started after an earlier stage failed to open
+						stage.abort();
+					} else {
+						stage.waitFor();
+					}
+				} catch (Exception e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+		}
+		try {
+			if (rs != null) {
+				rs.close();
+			}
+			if (stmt != null) {
+				stmt.close();
+			}
+		} finally {
+			con.close();
+		}
+		if (error != null) {
+			xmlTmp.delete();
+			LuceneIndexBuilder.deleteDirectory(indexTmp);
+			throw error;
+		}
+
+		File xmlFile = new File(xmlPath);
+		replace(xmlTmp, xmlFile);
+		replace(indexTmp, new File(indexDir));
+		TreeSnapshot.write(group, xmlFile, TreeSnapshot.snapshotFile(xmlPath));
+
+		System.out.println("Read " + numRows + " rows in " + readTime + " ms");
+		for (Stage stage : stages) {
+			System.out.println("The " + stage.getName() + " stage finished after " + (stage.endTime - start) + " ms");
+		}
+		System.out.println("Refreshed everything in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Replaces a file or directory with a new one
+	 * @param tmp is the new file or directory
+	 * @param target is the file or directory it replaces
+	 * @throws IOException
+	 */
+	private static void replace(File tmp, File target) throws IOException {
+		if (target.isDirectory()) {
+			LuceneIndexBuilder.deleteDirectory(target);
+		} else {
+			target.delete();
+		}
+		if (target.exists()) {
+			throw new IOException("Could not replace " + target);
+		}
+		if (!tmp.renameTo(target)) {
+			throw new IOException("Could not rename " + tmp + " to " + target);
+		}
+	}
+
+	/**
+	 * Connects to the database.  Cursor fetch is turned on, so the driver reads large results FETCH_SIZE rows
+	 * at a time instead of all at once.
+	 * @return the connection
+	 * @throws Exception
+	 */
+	private Connection connect() throws Exception {
+		Class.forName("com.mysql.jdbc.Driver");
+		String url = "jdbc:mysql://" + dbIP + ":" + dbPort + "/" + dbRootPath + "?useCursorFetch=true";
+		return DriverManager.getConnection(url, "access", "access");
+	}
+
+	/**
+	 * @param rsmd is the metadata of a result
+	 * @return the names of the columns of the result
+	 * @throws SQLException
+	 */
+	private static String[] getColumns(ResultSetMetaData rsmd) throws SQLException {
+		String[] columns = new String[rsmd.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = rsmd.getColumnName(i + 1);
+		}
+		return columns;
+	}
+
+	/**
+	 * A thread that does one thing with each row, taking the rows from a queue
+	 */
+	private static abstract class Stage extends Thread {
+		private final String[] END = new String[0];
+		private final String[] ABORT = new String[0];
+
+		private ArrayBlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(QUEUE_SIZE);
+		private volatile Exception error = null;
+		private volatile long endTime;
+
+		/**
+		 * Constructor.
+		 * @param name is the name of the stage
+		 */
+		public Stage(String name) {
+			super(name);
+		}
+
+		/**
+		 * Gets the stage ready for the rows, before its thread is started
+		 * @throws Exception
+		 */
+		protected abstract void open() throws Exception;
+
+		/**
+		 * Does the work of the stage on a row
+		 * @param values is the values of the columns of the row
+		 * @throws Exception
+		 */
+		protected abstract void process(String[] values) throws Exception;
+
+		/**
+		 * Completes the work of the stage once all the rows have been processed
+		 * @throws Exception
+		 */
+		protected abstract void finish() throws Exception;
+
+		/**
+		 * Throws away the work of the stage when not all the rows could be processed.  It may be called
+		 * when open() failed or was never called.
+		 * @throws Exception
+		 */
+		protected abstract void abort() throws Exception;
+
+		/**
+		 * Hands a row to the stage, waiting if the stage is too far behind
+		 * @param values is the values of the columns of the row
+		 * @throws IOException if the stage has failed
+		 * @throws InterruptedException
+		 */
+		public void add(String[] values) throws IOException, InterruptedException {
+			if (error != null) {
+				throw new IOException("The " + getName() + " stage failed: " + error);
+			}
+			queue.put(values);
+		}
+
+		/**
+		 * Tells the stage that no more rows will be handed to it
+		 * @param complete is true if all the rows were handed to it, false to throw away its work
+		 * @throws InterruptedException
+		 */
+		public void end(boolean complete) throws InterruptedException {
+			queue.put(complete ? END : ABORT);
+		}
+
+		/**
+		 * Waits for the stage to finish its work
+		 * @throws IOException if the stage has failed
+		 * @throws InterruptedException
+		 */
+		public void waitFor() throws IOException, InterruptedException {
+			join();
+			if (error != null) {
+				throw new IOException("The " + getName() + " stage failed: " + error);
+			}
+		}
+
+		public void run() {
+			boolean finished = false;
+			try {
+				String[] values = queue.take();
+				for (; values != END && values != ABORT; values = queue.take()) {
+					process(values);
+				}
+				if (values == END) {
+					finish();
+					finished = true;
+				}
+			} catch (Exception e) {
+				error = e;
+				e.printStackTrace();
+				//keep taking rows, so the reading thread is not blocked
+				try {
+					for (String[] values = queue.take(); values != END && values != ABORT; values = queue.take()) {
+					}
+				} catch (InterruptedException ie) {
+				}
+			}
+			if (!finished) {
+				try {
+					abort();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new DBPipeline().refresh(Math.max(1, Runtime.getRuntime().availableProcessors() - 2));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,5 +1,5 @@
 package util;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -7,22 +7,16 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.Vector;
-
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.XMLWriter;
 
 /**
  * Generates an XML file from a database.
  * 
- * It first obtains all the pid#, since pid# are unique and is the primary key in database.  
- * Then it goes through each pid# to get the rest of the fields.  This method is employed 
- * because it uses less heap space to query the database twice (first time for all pid#s, 
- * second time for each entry using the pid#), rather than just one step of a "SELECT * FROM dbTable" 
+ * The whole table is read with one query, through a forward-only cursor that fetches FETCH_SIZE rows at 
+ * a time.  Each row is written to the file as soon as it is read, so only those rows are in memory at once, 
+ * however large the table is.
+ * 
+ * The rows are written to a temporary file, which only replaces the old file once every row has been
+ * written, so a failed export leaves the old file as it was.
  */
 
 /*
@@ -31,11 +25,9 @@ import org.dom4j.io.XMLWriter;
  */
 public class DBtoXML {
 
-	private Vector<String> fields = null;
-	private Vector<Vector<String>> results = new Vector<Vector<String>>();
+	//number of rows the database sends at a time
+	private static final int FETCH_SIZE = 1000;
 
-	private Element root;
-	private int pidIndex = -1;
 	private String dbIP = "127.0.0.1";
 	private String dbPort = "80";
 	private String dbRootPath = "reports";
@@ -48,115 +40,74 @@ public class DBtoXML {
 	 * @throws Exception
 	 */
 	public void generateXML() throws SQLException, IOException, Exception {
-		connectToDB();
-			
-		//create the file
-		OutputFormat format = OutputFormat.createPrettyPrint();
-		XMLWriter xmlFile = new XMLWriter(new FileWriter("./data/" + dbTable + ".xml"), format);
-		
-		Document xmlData = DocumentHelper.createDocument();
-		root = xmlData.addElement("records");
-		root.addAttribute("dbName", dbTable);
-		
-		findPIDIndex();
-		
-		for(Vector<String> record : results) {
-			addRecord(record);
-		}
-		
-		xmlFile.write(xmlData);
-		xmlFile.close();
-	}
-	
-	/**
-	 * Connects to the database to get the relevant information
-	 * @throws SQLException
-	 * @throws Exception
-	 */
-	private void connectToDB() throws SQLException, Exception {
-		int numColumns = -1;
-		
-		String query = "SELECT pid FROM " + dbTable;
-		
 		//connect to database
 		Class.forName("com.mysql.jdbc.Driver");
-		String url ="jdbc:mysql://" + dbIP + ":" + dbPort + "/" + dbRootPath;
+		String url ="jdbc:mysql://" + dbIP + ":" + dbPort + "/" + dbRootPath + "?useCursorFetch=true";
 		Connection con = DriverManager.getConnection(url, "access", "access");
-		Statement stmt = con.createStatement();
-		ResultSet rs = stmt.executeQuery(query);
-		
-		//retrieve the pid#s
-		ArrayList<String> pidArray = new ArrayList<String>();
-		while(rs.next()) {
-			pidArray.add(rs.getString(1));
-		}
-		int numRows = pidArray.size();
-		
-		//get each entry in database based on pid#
-		for (int currIndex = 1; currIndex < numRows; currIndex++) {
-			query = "SELECT * FROM " + dbTable + " WHERE pid='" + pidArray.get(currIndex) + "'";
-			rs = stmt.executeQuery(query);
-			while(rs.next()) {
-				//remember the fields found in this database
-				if (numColumns < 0) {
-					ResultSetMetaData rsmd = rs.getMetaData();
-					numColumns = rsmd.getColumnCount();
-					fields = new Vector<String>();
-					for (int currCol = 1; currCol <= numColumns; currCol++) {
-						fields.add(rsmd.getColumnName(currCol));
-					}
-				}
-				
-				//store the resulting row data
-				Vector<String> rowData = new Vector<String>();
-				for (int currCol = 1; currCol <= numColumns; currCol++) {
-					rowData.add(rs.getString(currCol));
+		try {
+			Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				stmt.setFetchSize(FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery("SELECT * FROM " + dbTable);
+				try {
+					writeXML(rs, new File("./data/" + dbTable + ".xml"));
+				} finally {
+					rs.close();
 				}
-				results.add(rowData);
+			} finally {
+				stmt.close();
 			}
+		} finally {
+			con.close();
 		}
-		rs.close();
-		stmt.close();
-		con.close();
 	}
 	
 	/**
-	 * Get the column number in the database for the field "pid"
-	 */
-	private void findPIDIndex() {
-		int i = 0;
-		for (String s : fields) {
-			if (s.equals("pid")) {
-				pidIndex = i;
-				return;
-			}
-			i++;
-		}
-	}
-	
-	/**
-	 * Adds doc tags to Document object 
-	 * @param docID is the document's pid value
+	 * Writes the rows of a result to an XML file, replacing the file only once all of them are written
+	 * @param rs is the result
+	 * @param file is the XML file
+	 * @throws SQLException
+	 * @throws IOException
 	 */
-	private void addRecord(Vector<String> record) {
-		
-		Element doc = root.addElement("document");
-		if (pidIndex > 0) {
-			doc.addAttribute("docID", record.get(pidIndex));
+	private void writeXML(ResultSet rs, File file) throws SQLException, IOException {
+		//remember the fields found in this database
+		ResultSetMetaData rsmd = rs.getMetaData();
+		String[] fields = new String[rsmd.getColumnCount()];
+		for (int currCol = 1; currCol <= fields.length; currCol++) {
+			fields[currCol - 1] = rsmd.getColumnName(currCol);
 		}
 		
-		int i = 0;
-		String currData = "";
-		for(String elem : fields) {
-			currData = record.get(i);
-			if(currData == null) {
-				currData = "";
+		//create the file, and write each row to it
+		File tmp = new File(file.getPath() + ".tmp");
+		XMLRecordWriter xmlFile = new XMLRecordWriter(tmp.getPath(), dbTable, fields);
+		boolean written = false;
+		try {
+			while (rs.next()) {
+				String[] rowData = new String[fields.length];
+				for (int currCol = 1; currCol <= fields.length; currCol++) {
+					rowData[currCol - 1] = rs.getString(currCol);
+				}
+				xmlFile.write(rowData);
+			}
+			xmlFile.close();
+			written = true;
+		} finally {
+			if (!written) {
+				try {
+					xmlFile.abort();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				tmp.delete();
 			}
-			doc.addElement(elem)
-				.addText(currData);
-			i++;
 		}
 		
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file);
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
 	}
 	
 	public static void main(String[] args) {
@@ -1,15 +1,29 @@
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.dom4j.Element;
+import org.dom4j.ElementHandler;
+import org.dom4j.ElementPath;
+import org.dom4j.io.SAXReader;
 
 /**
- * Builds the index from the database.
+ * Builds the index from the database, or from an XML file made by DBtoXML.
  * 
- * Run the main() function to build the index.  Specify the database name in the main().
+ * Run the main() function to build the index.  Specify the database name in the main(), or give the path of
+ * the XML file as argument to build the index from the file without connecting to the database.  Give
+ * -sync as argument to only apply the rows that changed since the last sync.
  */
 
 /*
@@ -18,12 +32,31 @@ import org.apache.lucene.index.*;
  */
 public class LuceneIndexBuilder {
 	
+	//number of rows the database sends at a time
+	private static final int FETCH_SIZE = 1000;
+	
+	//number of documents waiting for each indexing thread
+	private static final int QUEUE_SIZE = 1000;
+	
+	//number of missing pid# whose rows are fetched with one query
+	private static final int BATCH_SIZE = 500;
+	
 	private IndexWriter writer;
 	private String indexDir = "./data/LuceneIndex";
 	private String dbIP = "127.0.0.1";
 	private String dbPort = "80";
 	private String dbRootPath = "reports";
 	private String dbTable = "data";
+	
+	//column holding the time a row was last changed, and where the time of the last sync is kept
+	private String modifiedColumn = "modified";
+	private String syncFile = "./data/sync.properties";
+	
+	//documents being indexed
+	private String[] columns;
+	private ShardWriter[] shards;
+	private int numIndexed;
+	private long startTime;
 
 	/**
 	 * Constructor.  It tries to find an existing index in the indexDir directory.  
@@ -46,116 +79,783 @@ public class LuceneIndexBuilder {
 		}
 	}
 	
+	/**
+	 * Constructor for a new index, replacing any index in a directory.  The documents are then given with
+	 * startIndexing(), index() and finishIndexing(), such as by DBPipeline.
+	 * @param dbTable is the database name stored in the documents
+	 * @param indexDir is the directory of the index
+	 * @throws IOException
+	 */
+	LuceneIndexBuilder(String dbTable, String indexDir) throws IOException {
+		this.dbTable = dbTable;
+		this.indexDir = indexDir;
+		writer = new IndexWriter(indexDir, new StandardAnalyzer(), true);
+	}
+	
+	/**
+	 * Builds/updates the index on one thread
+	 */
+	public void addData() {
+		addData(1);
+	}
+	
 	/**
 	 * Builds/updates the index
+	 * @param threads is the number of threads that analyze the documents
 	 */
 	/*
-	 * It first obtains all the pid#, since pid# are unique and is the primary key in database.  
-	 * Then it goes through each pid# to get the rest of the fields.  This method is employed 
-	 * because it uses less heap space to query the database twice (first time for all pid#s, 
-	 * second time for each entry using the pid#), rather than just one step of a "SELECT * FROM db" 
+	 * Documents whose pid# is already in the index are skipped, since pid# are unique and is the primary key
+	 * in database.  The pid# in the index are read once at the start, so checking a row needs no index
+	 * lookups.
+	 * 
+	 * When the index already has documents, only the pid# column of the table is read first, and the whole
+	 * rows are then fetched for the missing pid# alone, BATCH_SIZE pid# per query.  Rows that are already
+	 * indexed, and their text, are never sent by the database, and nothing is written when no row is
+	 * missing.  When the index is empty, or most rows are missing, the whole table is read with one query
+	 * instead.  Either way the results come through a forward-only cursor that fetches FETCH_SIZE rows at a
+	 * time, so only those rows are in memory at once.
+	 * 
+	 * With more than one thread, the rows are split between the threads by pid#, and each thread writes its
+	 * own index.  The indexes are merged into the index at the end.
 	 */
-	public void addData() {
+	public void addData(int threads) {
+		Connection con = null;
 		try {
-			Document doc;
-			int i;
 			IndexReader ir = IndexReader.open(writer.getDirectory());
+			PIDSet indexed = PIDSet.read(ir);
+			ir.close();
 			
-			//connect to database and return only the "pid" field because it uses less java heap space
-			String query = "SELECT pid FROM " + dbTable;
-			Class.forName("com.mysql.jdbc.Driver");
-			String url = "jdbc:mysql://" + dbIP + ":" + dbPort + "/" + dbRootPath;
-			Connection con = DriverManager.getConnection(url, "access", "access");
-			Statement stmt = con.createStatement();	
-			ResultSet rs = stmt.executeQuery(query);
-			
-			//store all the pids into an array
-			ArrayList<String> pidArray = new ArrayList<String>();
-			while(rs.next()) {
-				pidArray.add(rs.getString(1));
+			con = connect();
+			ArrayList<String> missing = null;
+			int skipped = 0;
+			if (indexed.size() > 0) {
+				missing = new ArrayList<String>();
+				int numRows = 0;
+				Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				stmt.setFetchSize(FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery("SELECT pid FROM " + dbTable);
+				while (rs.next()) {
+					String pid = rs.getString(1);
+					numRows++;
+					//a row without a pid# could never be found or updated again, so it is left out
+					if (pid == null) {
+						skipped++;
+					} else if (!indexed.contains(pid)) {
+						missing.add(pid);
+					}
+				}
+				rs.close();
+				stmt.close();
+				if (missing.isEmpty()) {
+					//the index is closed unchanged in the finally block
+					reportSkipped(skipped);
+					System.out.println("The index is up to date, no rows were added");
+					return;
+				}
+				if (missing.size() * 2 > numRows) {
+					//most rows are missing, so reading the whole table is cheaper
+					missing = null;
+					skipped = 0;
+				}
 			}
 			
-			int numRows = pidArray.size();
-
-			//retrieve one of the data in order to calculate the number of columns
-			query = "SELECT * FROM " + dbTable + " WHERE pid='" + pidArray.get(0) + "'";
-			rs = stmt.executeQuery(query);
-			ResultSetMetaData rsmd = rs.getMetaData();
-			int numColumns = rsmd.getColumnCount();
+			if (missing == null) {
+				Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				stmt.setFetchSize(FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery("SELECT * FROM " + dbTable);
+				skipped = indexRows(rs, indexed, threads);
+				rs.close();
+				stmt.close();
+			} else {
+				for (int start = 0; start < missing.size(); start += BATCH_SIZE) {
+					List<String> batch = missing.subList(start, Math.min(start + BATCH_SIZE, missing.size()));
+					StringBuilder sql = new StringBuilder("SELECT * FROM " + dbTable + " WHERE pid IN (?");
+					for (int i = 1; i < batch.size(); i++) {
+						sql.append(", ?");
+					}
+					sql.append(")");
+					PreparedStatement stmt = con.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					stmt.setFetchSize(FETCH_SIZE);
+					for (int i = 0; i < batch.size(); i++) {
+						stmt.setString(i + 1, batch.get(i));
+					}
+					ResultSet rs = stmt.executeQuery();
+					indexRows(rs, indexed, threads);
+					rs.close();
+					stmt.close();
+				}
+			}
+			reportSkipped(skipped);
 			
-			//remember the column number for the following unique fields
-			int pidIndex = 0; //pid
-			int dateIndex = 0; //date
-			int unparsedIndex = 0; //unparsed
-			int dobIndex = 0; //dob
-			for (i = 1; i <= numColumns; i++) {
-				String curCol = rsmd.getColumnName(i);
-				if (curCol.equals("unparsed")) {
-					unparsedIndex = i;
-				}
-				else if (curCol.equals("pid")) {
-					pidIndex = i;
-				}
-				else if( curCol.equals("date")) {
-					dateIndex = i;
-				}
-				else if (curCol.equals("dob")) {
-					dobIndex = i;
-				}
-			}	
+			if (columns != null) {
+				finishIndexing();
+			}
+		} catch (SQLException s) {
+			System.err.println("Error accessing database");
+			s.printStackTrace();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			abortIndexing();
+			if (con != null) {
+				try {
+					con.close();
+				} catch (SQLException s) {
+					s.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Indexes the rows of a result whose pid# are not in the index yet.  Indexing is started with the
+	 * columns of the result, unless it has already been started.
+	 * @param rs is the result
+	 * @param indexed is the pid# of the documents in the index
+	 * @param threads is the number of threads that analyze the documents
+	 * @return the number of rows left out because they have no pid#
+	 * @throws SQLException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int indexRows(ResultSet rs, PIDSet indexed, int threads) throws SQLException, IOException, InterruptedException {
+		if (columns == null) {
+			startIndexing(getColumns(rs.getMetaData()), threads);
+		}
+		int pidIndex = Arrays.asList(columns).indexOf("pid");
+		int skipped = 0;
+		while (rs.next()) {
+			String[] values = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				values[i] = rs.getString(i + 1);
+			}
+			String pid = (pidIndex < 0) ? null : values[pidIndex];
+			//a row without a pid# could never be found or updated again, so it is left out
+			if (pid == null) {
+				skipped++;
+			}
+			//check to see if data already exist in the index.  If not, then add to index
+			//this works under the assumption that all "pid" field keys are unique
+			else if (!indexed.contains(pid)) {
+				index(values, pid);
+			}
+		}
+		return skipped;
+	}
+	
+	private static void reportSkipped(int skipped) {
+		if (skipped > 0) {
+			System.err.println("Skipped " + skipped + " rows without pid");
+		}
+	}
+	
+	/**
+	 * Builds/updates the index from an XML file, such as one made by DBtoXML, without connecting to the
+	 * database.  The file is read as a stream, and each document is indexed as soon as it is read.  The
+	 * fields are the elements of the first document, and the database name is taken from the file.
+	 * @param filePath is the location of the XML file
+	 * @param threads is the number of threads that analyze the documents
+	 */
+	public void addDataFromXML(String filePath, final int threads) {
+		try {
+			IndexReader ir = IndexReader.open(writer.getDirectory());
+			final PIDSet indexed = PIDSet.read(ir);
+			ir.close();
+			final HashMap<String, Integer> columnIndex = new HashMap<String, Integer>();
+			final int[] skipped = new int[1];
 			
-			String resultData = "";
-			for(int currIndex = 0; currIndex < numRows; currIndex++) {
-				//check to see if data already exist in the index.  If not, then add to index
-				//this works under the assumption that all "pid" field keys are unique
-				if(ir.docFreq(new Term("pid", pidArray.get(currIndex))) < 1) {
-					//add data to index
-					query = "SELECT * FROM " + dbTable + " WHERE pid='" + pidArray.get(currIndex) + "'";
-					rs = stmt.executeQuery(query);
-					rs.next();
-	
-					//add data to index 
-					doc = new Document();
-					//store the database name in which the data is from
-					doc.add(new Field("database", dbTable, Field.Store.YES, Field.Index.UN_TOKENIZED));
-					//store the rest of the data
-					for (i = 1; i <= numColumns; i++) {
-						resultData = rs.getString(i);
-						if (resultData == null) {
-							resultData = "";
+			SAXReader reader = new SAXReader();
+			reader.addHandler("/records", new ElementHandler() {
+				public void onStart(ElementPath path) {
+					String dbName = path.getCurrent().attributeValue("dbName");
+					if (dbName != null) {
+						dbTable = dbName;
+					}
+				}
+				public void onEnd(ElementPath path) {
+				}
+			});
+			reader.addHandler("/records/document", new ElementHandler() {
+				public void onStart(ElementPath path) {
+				}
+				public void onEnd(ElementPath path) {
+					Element docTag = path.getCurrent();
+					List<?> elements = docTag.elements();
+					try {
+						if (columnIndex.isEmpty()) {
+							String[] names = new String[elements.size()];
+							for (int i = 0; i < names.length; i++) {
+								names[i] = ((Element)elements.get(i)).getName();
+								columnIndex.put(names[i], i);
+							}
+							startIndexing(names, threads);
 						}
-						//don't index the "unparsed" field
-						if(i == unparsedIndex) {
-							doc.add(new Field(rsmd.getColumnName(i), resultData, Field.Store.YES, Field.Index.NO));
+						
+						//elements that the first document did not have are left out
+						String[] values = new String[columns.length];
+						for (Object o : elements) {
+							Element e = (Element)o;
+							Integer i = columnIndex.get(e.getName());
+							if (i != null) {
+								values[i] = e.getText();
+							}
 						}
-						//tokenize all other fields except: pid, date, dob
-						else if(i != pidIndex && i != dateIndex && i != dobIndex) {
-							doc.add(new Field(rsmd.getColumnName(i), resultData, Field.Store.YES, Field.Index.TOKENIZED));
+						Integer pidIndex = columnIndex.get("pid");
+						String pid = (pidIndex == null) ? null : values[pidIndex];
+						//a row without a pid# could never be found or updated again, so it is left out like
+						//in addData().  DBtoXML writes a null pid# as an empty element
+						if (pid == null || pid.trim().length() == 0) {
+							skipped[0]++;
 						}
-						else {
-							doc.add(new Field(rsmd.getColumnName(i), resultData, Field.Store.YES, Field.Index.UN_TOKENIZED));
+						//check to see if data already exist in the index.  If not, then add to index
+						else if (!indexed.contains(pid)) {
+							index(values, pid);
 						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
 					}
-					writer.addDocument(doc);
+					//the document is no longer needed, so it is pruned to keep memory use low.  The whole
+					//content of the root is cleared since the whitespace between documents would otherwise
+					//pile up in it
+					docTag.getParent().clearContent();
 				}
+			});
+			reader.read(new File(filePath));
+			
+			if (columns != null) {
+				finishIndexing();
+			}
+			reportSkipped(skipped[0]);
+		} catch (Exception e) {
+			System.err.println("Error indexing " + filePath);
+			e.printStackTrace();
+		} finally {
+			abortIndexing();
+		}
+	}
+	
+	/**
+	 * Brings the index up to date with the database, touching only the documents that changed.  Rows
+	 * changed since the last sync are found by their modification time and re-indexed, replacing their old
+	 * documents, and documents whose rows were deleted are removed from the index.
+	 * 
+	 * The time of the last change seen is kept in syncFile.  The first sync re-indexes every row.
+	 */
+	/*
+	 * Rows changed at the exact time of the last sync are read again, since rows changed later in that
+	 * same instant may not have been seen.  Re-indexing them is harmless.
+	 * 
+	 * Deleted rows are found by reading all the pid# of the table in one query and marking them off the
+	 * pid# of the index; whatever is left is no longer in the table.
+	 */
+	public void syncData() {
+		try {
+			Properties sync = new Properties();
+			File f = new File(syncFile);
+			if (f.exists()) {
+				InputStream in = new FileInputStream(f);
+				sync.load(in);
+				in.close();
+			}
+			String key = dbTable + ".watermark";
+			Timestamp watermark = null;
+			if (sync.getProperty(key) != null) {
+				watermark = Timestamp.valueOf(sync.getProperty(key));
 			}
-			writer.optimize();
+			
+			IndexReader ir = IndexReader.open(writer.getDirectory());
+			PIDSet indexed = PIDSet.read(ir);
 			ir.close();
-			writer.close(); 
+			
+			//inserts and updates
+			Connection con = connect();
+			String sql = "SELECT * FROM " + dbTable;
+			if (watermark != null) {
+				sql += " WHERE " + modifiedColumn + " >= ?";
+			}
+			PreparedStatement stmt = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(FETCH_SIZE);
+			if (watermark != null) {
+				stmt.setTimestamp(1, watermark);
+			}
+			ResultSet rs = stmt.executeQuery();
+			
+			String[] columns = getColumns(rs.getMetaData());
+			int pidIndex = Arrays.asList(columns).indexOf("pid");
+			int modifiedIndex = Arrays.asList(columns).indexOf(modifiedColumn);
+			if (modifiedIndex < 0) {
+				System.err.println("Table " + dbTable + " has no " + modifiedColumn + " column to sync by");
+				rs.close();
+				stmt.close();
+				con.close();
+				return;
+			}
+			int inserted = 0;
+			int updated = 0;
+			int skipped = 0;
+			long start = System.currentTimeMillis();
+			while (rs.next()) {
+				String[] values = new String[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					values[i] = rs.getString(i + 1);
+				}
+				Timestamp modified = rs.getTimestamp(modifiedIndex + 1);
+				if (modified != null && (watermark == null || modified.after(watermark))) {
+					watermark = modified;
+				}
+				String pid = (pidIndex < 0) ? null : values[pidIndex];
+				if (pid == null) {
+					//a row without a pid# has no term to replace its document by
+					skipped++;
+					continue;
+				}
+				if (indexed.contains(pid)) {
+					updated++;
+				} else {
+					inserted++;
+				}
+				writer.updateDocument(new Term("pid", pid), buildDocument(columns, values));
+			}
 			rs.close();
 			stmt.close();
+			
+			//deletes
+			BitSet present = new BitSet(indexed.size());
+			Statement pidStmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pidStmt.setFetchSize(FETCH_SIZE);
+			rs = pidStmt.executeQuery("SELECT pid FROM " + dbTable);
+			while (rs.next()) {
+				String pid = rs.getString(1);
+				int i = (pid == null) ? -1 : indexed.indexOf(pid);
+				if (i >= 0) {
+					present.set(i);
+				}
+			}
+			rs.close();
+			pidStmt.close();
 			con.close();
+			int deleted = 0;
+			for (int i = present.nextClearBit(0); i < indexed.size(); i = present.nextClearBit(i + 1)) {
+				writer.deleteDocuments(new Term("pid", indexed.get(i)));
+				deleted++;
+			}
+			
+			//the index is not optimized, since that would rewrite every document
+			writer.close();
+			writer = null;
+			System.out.println("Synced " + inserted + " new, " + updated + " changed and " + deleted
+					+ " deleted documents in " + (System.currentTimeMillis() - start) + " ms");
+			if (skipped > 0) {
+				System.err.println("Skipped " + skipped + " rows without pid");
+			}
+			
+			if (watermark != null) {
+				sync.setProperty(key, watermark.toString());
+				OutputStream out = new FileOutputStream(f);
+				sync.store(out, "Time of the last change indexed, per table");
+				out.close();
+			}
 		} catch (SQLException s) {
 			System.err.println("Error accessing database");
 			s.printStackTrace();
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			//closes the index if the sync stopped early, so its lock is not left behind
+			abortIndexing();
+		}
+	}
+	
+	/**
+	 * Gets ready to index documents
+	 * @param columns is the names of the fields of the documents
+	 * @param threads is the number of threads that analyze the documents
+	 * @throws IOException
+	 */
+	void startIndexing(String[] columns, int threads) throws IOException {
+		this.columns = columns;
+		numIndexed = 0;
+		startTime = System.currentTimeMillis();
+		shards = null;
+		if (threads > 1) {
+			shards = new ShardWriter[threads];
+			for (int i = 0; i < threads; i++) {
+				shards[i] = new ShardWriter(indexDir + ".shard" + i);
+				shards[i].start();
+			}
+		}
+	}
+	
+	/**
+	 * Indexes a document, or hands it to the thread for its pid#
+	 * @param values is the values of the fields of the document
+	 * @param pid is the pid# of the document, or null if it has none, in which case the documents are
+	 * handed to the threads in turn
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void index(String[] values, String pid) throws IOException, InterruptedException {
+		if (shards == null) {
+			writer.addDocument(buildDocument(columns, values));
+		} else if (pid == null) {
+			shards[numIndexed % shards.length].add(values);
+		} else {
+			shards[(pid.hashCode() & 0x7fffffff) % shards.length].add(values);
+		}
+		numIndexed++;
+	}
+	
+	/**
+	 * Waits for the threads to index their documents, merges their indexes into the index, and reports the
+	 * time taken.  The index is closed.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void finishIndexing() throws IOException, InterruptedException {
+		if (shards != null) {
+			for (ShardWriter shard : shards) {
+				shard.finish();
+			}
+		}
+		long indexTime = Math.max(1, System.currentTimeMillis() - startTime);
+		System.out.println("Indexed " + numIndexed + " documents in " + indexTime + " ms ("
+				+ (numIndexed * 1000L / indexTime) + " documents/sec)");
+		
+		//an index that did not change is not merged or optimized again
+		long mergeStart = System.currentTimeMillis();
+		if (shards == null) {
+			if (numIndexed > 0) {
+				writer.optimize();
+			}
+		} else {
+			Directory[] dirs = new Directory[shards.length];
+			for (int i = 0; i < shards.length; i++) {
+				dirs[i] = FSDirectory.getDirectory(shards[i].path);
+			}
+			//the index is optimized once the shards are added
+			if (numIndexed > 0) {
+				writer.addIndexes(dirs);
+			}
+			for (int i = 0; i < shards.length; i++) {
+				dirs[i].close();
+				deleteDirectory(new File(shards[i].path));
+			}
+			shards = null;
+		}
+		if (numIndexed > 0) {
+			System.out.println("Merged and optimized the index in " + (System.currentTimeMillis() - mergeStart) + " ms");
+		}
+		writer.close();
+		writer = null;
+	}
+	
+	/**
+	 * Cleans up after indexing failed: stops the threads, deletes their indexes and closes the index, so
+	 * no lock is left behind.  Does nothing once finishIndexing() or a sync has completed.
+	 */
+	void abortIndexing() {
+		if (shards != null) {
+			for (ShardWriter shard : shards) {
+				if (shard != null) {
+					shard.abort();
+				}
+			}
+			shards = null;
+		}
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			writer = null;
+		}
+	}
+	
+	static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	/**
+	 * Connects to the database.  Cursor fetch is turned on, so the driver reads large results FETCH_SIZE rows
+	 * at a time instead of all at once.
+	 * @return the connection
+	 * @throws Exception
+	 */
+	private Connection connect() throws Exception {
+		Class.forName("com.mysql.jdbc.Driver");
+		String url = "jdbc:mysql://" + dbIP + ":" + dbPort + "/" + dbRootPath + "?useCursorFetch=true";
+		return DriverManager.getConnection(url, "access", "access");
+	}
+	
+	/**
+	 * @param rsmd is the metadata of a result
+	 * @return the names of the columns of the result
+	 * @throws SQLException
+	 */
+	private static String[] getColumns(ResultSetMetaData rsmd) throws SQLException {
+		String[] columns = new String[rsmd.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = rsmd.getColumnName(i + 1);
+		}
+		return columns;
+	}
+	
+	/**
+	 * Builds the Lucene document of a row.  All fields are stored; "unparsed" is not indexed, "pid", "date"
+	 * and "dob" are indexed as a single term, and the other fields are tokenized.
+	 * @param columns is the names of the columns
+	 * @param values is the values of the columns, which may be null
+	 * @return the document
+	 */
+	private Document buildDocument(String[] columns, String[] values) {
+		Document doc = new Document();
+		//store the database name in which the data is from
+		doc.add(new Field("database", dbTable, Field.Store.YES, Field.Index.UN_TOKENIZED));
+		//store the rest of the data
+		for (int i = 0; i < columns.length; i++) {
+			String resultData = values[i];
+			if (resultData == null) {
+				resultData = "";
+			}
+			//don't index the "unparsed" field
+			if (columns[i].equals("unparsed")) {
+				doc.add(new Field(columns[i], resultData, Field.Store.YES, Field.Index.NO));
+			}
+			//tokenize all other fields except: pid, date, dob
+			else if (!columns[i].equals("pid") && !columns[i].equals("date") && !columns[i].equals("dob")) {
+				doc.add(new Field(columns[i], resultData, Field.Store.YES, Field.Index.TOKENIZED));
+			}
+			else {
+				doc.add(new Field(columns[i], resultData, Field.Store.YES, Field.Index.UN_TOKENIZED));
+			}
+		}
+		return doc;
+	}
+	
+	/**
+	 * The pid# of the documents in an index, for checking whether a document is already indexed.  Numeric
+	 * pid# are kept as a sorted array of longs, and any others as a sorted array of strings.  Each pid# also
+	 * has a position in the set, the numeric ones first, so the pid# can be marked off in a BitSet.
+	 */
+	private static class PIDSet {
+		private long[] numbers;
+		private String[] others;
+		
+		/**
+		 * Reads the pid# of all the documents in an index from its term dictionary
+		 * @param ir is the index
+		 * @return the pid#
+		 * @throws IOException
+		 */
+		public static PIDSet read(IndexReader ir) throws IOException {
+			long[] numbers = new long[1024];
+			int numNumbers = 0;
+			ArrayList<String> others = new ArrayList<String>();
+			TermEnum terms = ir.terms(new Term("pid", ""));
+			TermDocs docs = ir.termDocs();
+			try {
+				for (Term t = terms.term(); t != null && t.field().equals("pid"); t = terms.next() ? terms.term() : null) {
+					//terms of deleted documents stay in the dictionary until the index is merged
+					docs.seek(terms);
+					if (!docs.next()) {
+						continue;
+					}
+					long n = toNumber(t.text());
+					if (n < 0) {
+						others.add(t.text());
+					} else {
+						if (numNumbers == numbers.length) {
+							long[] grown = new long[numNumbers * 2];
+							System.arraycopy(numbers, 0, grown, 0, numNumbers);
+							numbers = grown;
+						}
+						numbers[numNumbers++] = n;
+					}
+				}
+			} finally {
+				terms.close();
+				docs.close();
+			}
+			PIDSet set = new PIDSet();
+			set.numbers = new long[numNumbers];
+			System.arraycopy(numbers, 0, set.numbers, 0, numNumbers);
+			//terms are in text order, which is not numeric order
+			Arrays.sort(set.numbers);
+			set.others = others.toArray(new String[others.size()]);
+			return set;
+		}
+		
+		/**
+		 * @param pid is a pid#
+		 * @return true if a document with the pid# is in the index
+		 */
+		public boolean contains(String pid) {
+			return indexOf(pid) >= 0;
+		}
+		
+		/**
+		 * @param pid is a pid#
+		 * @return the position of the pid# in the set, or -1 if no document with the pid# is in the index
+		 */
+		public int indexOf(String pid) {
+			long n = toNumber(pid);
+			if (n < 0) {
+				int i = Arrays.binarySearch(others, pid);
+				return (i < 0) ? -1 : numbers.length + i;
+			}
+			int i = Arrays.binarySearch(numbers, n);
+			return (i < 0) ? -1 : i;
+		}
+		
+		/**
+		 * @param i is a position in the set
+		 * @return the pid# at the position
+		 */
+		public String get(int i) {
+			if (i < numbers.length) {
+				return Long.toString(numbers[i]);
+			}
+			return others[i - numbers.length];
+		}
+		
+		/**
+		 * @return the number of pid# in the set
+		 */
+		public int size() {
+			return numbers.length + others.length;
+		}
+		
+		/**
+		 * @param pid is a pid#
+		 * @return the pid# as a number, or -1 if it is not written the way Long.toString() writes numbers
+		 */
+		private static long toNumber(String pid) {
+			int length = pid.length();
+			if (length == 0 || length > 18 || (pid.charAt(0) == '0' && length > 1)) {
+				return -1;
+			}
+			long n = 0;
+			for (int i = 0; i < length; i++) {
+				char c = pid.charAt(i);
+				if (c < '0' || c > '9') {
+					return -1;
+				}
+				n = n * 10 + (c - '0');
+			}
+			return n;
+		}
+	}
+	
+	/**
+	 * A thread that indexes part of the documents into an index of its own
+	 */
+	private class ShardWriter extends Thread {
+		private final String[] END = new String[0];
+		
+		private String path;
+		private IndexWriter shardWriter;
+		private ArrayBlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(QUEUE_SIZE);
+		private volatile Exception error = null;
+		
+		/**
+		 * Constructor.
+		 * @param path is where the index of the thread is written, replacing any index there
+		 * @throws IOException
+		 */
+		public ShardWriter(String path) throws IOException {
+			this.path = path;
+			shardWriter = new IndexWriter(path, new StandardAnalyzer(), true);
+			//a thread left waiting for documents must not keep the JVM running
+			setDaemon(true);
+		}
+		
+		/**
+		 * Hands a document to the thread, waiting if the thread is too far behind
+		 * @param values is the values of the fields of the document
+		 * @throws IOException if the thread has failed
+		 * @throws InterruptedException
+		 */
+		public void add(String[] values) throws IOException, InterruptedException {
+			if (error != null) {
+				throw new IOException("Indexing failed: " + error);
+			}
+			queue.put(values);
+		}
+		
+		/**
+		 * Waits for the thread to index all of its documents
+		 * @throws IOException if the thread has failed
+		 * @throws InterruptedException
+		 */
+		public void finish() throws IOException, InterruptedException {
+			queue.put(END);
+			join();
+			if (error != null) {
+				throw new IOException("Indexing failed: " + error);
+			}
+		}
+		
+		/**
+		 * Stops the thread without indexing the rest of its documents, and deletes its index
+		 */
+		public void abort() {
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			deleteDirectory(new File(path));
+		}
+		
+		public void run() {
+			boolean closed = false;
+			try {
+				for (String[] values = queue.take(); values != END; values = queue.take()) {
+					shardWriter.addDocument(buildDocument(columns, values));
+				}
+				shardWriter.close();
+				closed = true;
+			} catch (InterruptedException e) {
+				//aborted
+			} catch (Exception e) {
+				error = e;
+				e.printStackTrace();
+				//keep taking documents, so the reading thread is not blocked
+				try {
+					while (queue.take() != END) {
+					}
+				} catch (InterruptedException ie) {
+				}
+			} finally {
+				if (!closed) {
+					//releases the lock of the index, which is then deleted
+					try {
+						shardWriter.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
 		}
 	}
 	
 	public static void main(String[] args) {
 		LuceneIndexBuilder ib = new LuceneIndexBuilder();
-		ib.addData();
+		if (args.length > 0 && args[0].equals("-sync")) {
+			ib.syncData();
+		} else if (args.length > 0) {
+			ib.addDataFromXML(args[0], Runtime.getRuntime().availableProcessors());
+		} else {
+			ib.addData(Runtime.getRuntime().availableProcessors());
+		}
 	}
 
 }
@@ -0,0 +1,116 @@
+package util;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+
+/**
+ * Writes records to an XML file one at a time, in the format read by XMLtoTree.  Each record is written as
+ * soon as it is given, so memory use does not grow with the number of records.
+ *
+ * The file is the same as the one a pretty printed dom4j Document of all the records would give:
+ * <records dbName="...">
+ *   <document docID="pid#">
+ *     <column>text</column>
+ *     ...
+ *   </document>
+ *   ...
+ * </records>
+ */
+public class XMLRecordWriter {
+
+	private XMLWriter writer;
+	private Element root;
+	private String[] fields;
+	private int pidIndex;
+
+	/**
+	 * Constructor.  Opens the file and writes the start of the records.
+	 * @param filePath is the location of the XML file, which is replaced if it exists
+	 * @param dbName is the database name
+	 * @param fields is the names of the columns of the records
+	 * @throws IOException
+	 */
+	public XMLRecordWriter(String filePath, String dbName, String[] fields) throws IOException {
+		this.fields = fields;
+		pidIndex = Arrays.asList(fields).indexOf("pid");
+
+		writer = new XMLWriter(new FileOutputStream(filePath), OutputFormat.createPrettyPrint());
+		root = DocumentHelper.createElement("records");
+		root.addAttribute("dbName", dbName);
+		try {
+			writer.startDocument();
+		} catch (Exception e) {
+			throw new IOException("Cannot write " + filePath + ": " + e);
+		}
+		writer.println();
+		writer.writeOpen(root);
+		writer.setIndentLevel(1);
+	}
+
+	/**
+	 * Writes a record
+	 * @param values is the values of the columns, which may be null
+	 * @throws IOException
+	 */
+	public void write(String[] values) throws IOException {
+		Element doc = DocumentHelper.createElement("document");
+		if (pidIndex >= 0 && values[pidIndex] != null) {
+			doc.addAttribute("docID", values[pidIndex]);
+		}
+		for (int i = 0; i < fields.length; i++) {
+			doc.addElement(fields[i]).addText(values[i] == null ? "" : values[i]);
+		}
+		writer.write(doc);
+	}
+
+	/**
+	 * Writes the end of the records and closes the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		writer.println();
+		writer.writeClose(root);
+		writer.println();
+		try {
+			writer.endDocument();
+		} catch (Exception e) {
+			throw new IOException("Cannot write the end of the file: " + e);
+		}
+		writer.close();
+	}
+
+	/**
+	 * Closes the file without writing the end of the records, such as when the records could not all be read
+	 * @throws IOException
+	 */
+	public void abort() throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Gets the text of a field as it is read back from the file.  The file is pretty printed, which trims
+	 * the text and turns each run of whitespace inside it into one space.
+	 * @param text is the text written
+	 * @return the text read back
+	 */
+	public static String trimText(String text) {
+		if (text == null) {
+			return "";
+		}
+		StringTokenizer tokens = new StringTokenizer(text);
+		if (!tokens.hasMoreTokens()) {
+			return "";
+		}
+		StringBuilder trimmed = new StringBuilder(tokens.nextToken());
+		while (tokens.hasMoreTokens()) {
+			trimmed.append(' ').append(tokens.nextToken());
+		}
+		return trimmed.toString();
+	}
+}